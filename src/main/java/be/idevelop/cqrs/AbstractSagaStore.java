@@ -1,5 +1,6 @@
 package be.idevelop.cqrs;
 
+import io.micronaut.core.beans.BeanIntrospection;
 import io.micronaut.core.beans.BeanIntrospector;
 import io.micronaut.core.type.Argument;
 import io.micronaut.json.JsonMapper;
@@ -8,67 +9,248 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Base class of the saga stores, keeping sagas as {@link SagaData}. A store created with a write-behind batch size
+ * queues its writes: {@link #storeSagaAsync} and {@link #deleteSagaAsync} return immediately, unless the queue is full,
+ * and complete once the write is durable, repeated writes to the same saga are coalesced, and the writes are handed to
+ * {@link #doWriteBatch} in batches. Lookups see the queued writes of the looked up entity before they reach the store.
+ * <p>
+ * The state of a {@link TypedSaga} is stored with the {@link SagaStateCodec}, the field data of other sagas as JSON.
+ * <p>
+ * A saga that was stored before is written as a {@link SagaDelta} holding only what changed since, through
+ * {@link #doUpdate}. Stores that can't patch their records keep the default, which writes the full {@link SagaData}
+ * instead. A saga without changes isn't written at all.
+ */
 @SuppressWarnings("unchecked")
 public abstract class AbstractSagaStore implements SagaStore {
 
+    private static final Argument<Map<String, Object>> FIELD_DATA_ARGUMENT = Argument.mapOf(String.class, Object.class);
+
+    private static final int DEFAULT_WRITE_BEHIND_MAX_PENDING = 10_000;
+
     private final JsonMapper jsonMapper;
 
+    @SuppressWarnings("rawtypes")
+    private final ConcurrentMap<String, BeanIntrospection<? extends Saga>> sagaIntrospections = new ConcurrentHashMap<>();
+
+    private final SagaStateCodec stateCodec;
+
+    private final SagaWriteBehind writeBehind;
+
     protected AbstractSagaStore(JsonMapper jsonMapper) {
+        this(jsonMapper, 0, Duration.ZERO);
+    }
+
+    protected AbstractSagaStore(JsonMapper jsonMapper, int writeBehindBatchSize, Duration writeBehindFlushInterval) {
+        this(jsonMapper, new SagaStateCodec(jsonMapper), writeBehindBatchSize, writeBehindFlushInterval);
+    }
+
+    /**
+     * @param stateCodec               the codec of the state of {@link TypedSaga}s
+     * @param writeBehindBatchSize     the maximum number of writes per batch, 0 to write synchronously
+     * @param writeBehindFlushInterval the maximum time a write is queued
+     */
+    protected AbstractSagaStore(JsonMapper jsonMapper, SagaStateCodec stateCodec, int writeBehindBatchSize, Duration writeBehindFlushInterval) {
+        this(jsonMapper, stateCodec, writeBehindBatchSize, DEFAULT_WRITE_BEHIND_MAX_PENDING, writeBehindFlushInterval);
+    }
+
+    /**
+     * @param stateCodec               the codec of the state of {@link TypedSaga}s
+     * @param writeBehindBatchSize     the maximum number of writes per batch, 0 to write synchronously
+     * @param writeBehindMaxPending    the maximum number of sagas with a write queued for the next batch, writes for
+     *                                 other sagas wait for room without blocking their caller
+     * @param writeBehindFlushInterval the maximum time a write is queued
+     */
+    protected AbstractSagaStore(JsonMapper jsonMapper, SagaStateCodec stateCodec, int writeBehindBatchSize, int writeBehindMaxPending, Duration writeBehindFlushInterval) {
         this.jsonMapper = jsonMapper;
+        this.stateCodec = stateCodec;
+        this.writeBehind = writeBehindBatchSize > 0
+                ? new SagaWriteBehind(getClass().getSimpleName(), this::doWriteBatch, writeBehindBatchSize, writeBehindMaxPending, writeBehindFlushInterval)
+                : null;
+        BeanIntrospector.SHARED.findIntrospections(reference -> Saga.class.isAssignableFrom(reference.getBeanType()) && !Modifier.isAbstract(reference.getBeanType().getModifiers()))
+                .forEach(introspection -> this.sagaIntrospections.put(introspection.getBeanType().getName(), (BeanIntrospection<? extends Saga>) introspection));
     }
 
     @Override
     public <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<S> findAssociatedSagas(I id, Class<S> sagaClass) {
-        return doFindAssociatedSagas(id, sagaClass)
-                .flatMap(this::rebuildSaga);
-    }
-
-    private <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Mono<S> rebuildSaga(SagaData sagaData) {
-        return Flux.fromIterable(
-                        BeanIntrospector.SHARED.findIntrospections(beanIntrospectionReference -> Objects.equals(beanIntrospectionReference.getBeanType().getName(), sagaData.sagaClassName))
-                )
-                .take(1).singleOrEmpty()
-                .map(introspection -> (S) introspection.instantiate(
-                        sagaData.id,
-                        sagaData.created
-                ))
-                .onErrorResume(e -> Mono.empty())
-                .doOnNext(saga -> saga.setCurrentState(sagaData.sagaState))
-                .doOnNext(saga -> {
-                    try {
-                        saga.hydrateFieldData(jsonMapper.readValue(sagaData.fieldData(), Argument.mapOf(String.class, Object.class)));
-                    } catch (IOException e) {
-                        throw new RuntimeException("Could not deserialize Saga field data from BSON", e);
-                    }
-                });
+        return withQueuedWrites(id, sagaClass)
+                .flatMap(sagaData -> Mono.fromCallable(() -> this.<S>rebuildSaga(sagaData)));
     }
 
     @Override
-    public <S extends Saga<S>> void storeSaga(S saga) {
+    public <S extends Saga<S>> Mono<S> findSaga(SagaId<S> sagaId) {
+        var queued = writeBehind == null ? null : writeBehind.queued(sagaId);
+        var sagaData = queued == null ? doFindSaga(sagaId) : Mono.justOrEmpty(queued.sagaData());
+        return sagaData
+                .flatMap(data -> Mono.fromCallable(() -> this.<S>rebuildSaga(data)));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<SagaData> withQueuedWrites(I id, Class<S> sagaClass) {
+        if (writeBehind == null) {
+            return doFindAssociatedSagas(id, sagaClass);
+        }
+        return Flux.defer(() -> {
+            Map<SagaId, SagaWrite> queued = writeBehind.queued(id);
+            if (queued.isEmpty()) {
+                return doFindAssociatedSagas(id, sagaClass);
+            }
+            return doFindAssociatedSagas(id, sagaClass)
+                    .filter(sagaData -> !queued.containsKey(sagaData.id()))
+                    .concatWith(Flux.fromIterable(queued.values())
+                            .map(SagaWrite::sagaData)
+                            .filter(sagaData -> sagaData != null && sagaData.sagaClassName().equals(sagaClass.getName())));
+        });
+    }
+
+    @SuppressWarnings("rawtypes")
+    <S extends Saga<S>> S rebuildSaga(SagaData sagaData) {
+        S saga;
         try {
-            doStore(
-                    new SagaData(
-                            saga.getSagaId(),
-                            saga.getClass().getName(),
-                            saga.getCreated(),
-                            saga.getCurrentState(),
-                            saga.getLinkedEntities(),
-                            saga.getScheduledTimeout(),
-                            jsonMapper.writeValueAsBytes(saga.getFieldData())
-                    )
-            );
+            saga = (S) getSagaIntrospection(sagaData.sagaClassName()).instantiate(sagaData.id(), sagaData.created());
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Could not instantiate Saga " + sagaData.sagaClassName() + " with id " + sagaData.id(), e);
+        }
+        saga.setCurrentState(sagaData.sagaState());
+        if (sagaData.scheduledTimeout() != null) {
+            saga.restoreScheduledTimeout(sagaData.scheduledTimeout());
+        }
+        for (Id objectId : sagaData.associatedEntities()) {
+            saga.linkEntity(objectId);
+        }
+        try {
+            if (saga instanceof TypedSaga<?, ?> typedSaga) {
+                stateCodec.decode(typedSaga, sagaData.fieldData());
+            } else {
+                saga.hydrateFieldData(jsonMapper.readValue(sagaData.fieldData(), FIELD_DATA_ARGUMENT));
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Could not serialize Saga field data to BSON", e);
+            throw new RuntimeException("Could not deserialize the state of Saga " + sagaData.id(), e);
+        }
+        saga.markPersisted(sagaData.fieldData());
+        return saga;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private BeanIntrospection<? extends Saga> getSagaIntrospection(String sagaClassName) {
+        return this.sagaIntrospections.computeIfAbsent(sagaClassName, className ->
+                BeanIntrospector.SHARED.findIntrospections(reference -> Objects.equals(reference.getBeanType().getName(), className))
+                        .stream()
+                        .findFirst()
+                        .map(introspection -> (BeanIntrospection<? extends Saga>) introspection)
+                        .orElseThrow(() -> new IllegalStateException("No introspection found for Saga " + className + ". Please verify it is annotated with @Introspected"))
+        );
+    }
+
+    @Override
+    public <S extends Saga<S>> void storeSaga(S saga) {
+        if (writeBehind == null) {
+            var write = toSagaWrite(saga);
+            write(write);
+            saga.markPersisted(write.sagaData().fieldData());
+        } else {
+            storeSagaAsync(saga).block();
         }
     }
 
     @Override
     public <S extends Saga<S>> void deleteSaga(S saga) {
-        doDeleteSaga(saga.getSagaId());
+        if (writeBehind == null) {
+            doDeleteSaga(saga.getSagaId());
+        } else {
+            deleteSagaAsync(saga).block();
+        }
+    }
+
+    @Override
+    public <S extends Saga<S>> Mono<Void> storeSagaAsync(S saga) {
+        if (writeBehind == null) {
+            return SagaStore.super.storeSagaAsync(saga);
+        }
+        try {
+            var write = toSagaWrite(saga);
+            // the next write of the saga is a delta on top of this one, the write-behind rewrites it in full when this
+            // one fails
+            saga.markPersisted(write.sagaData().fieldData());
+            return writeBehind.write(write, write.sagaData().associatedEntities());
+        } catch (RuntimeException e) {
+            return Mono.error(e);
+        }
+    }
+
+    @Override
+    public <S extends Saga<S>> Mono<Void> deleteSagaAsync(S saga) {
+        if (writeBehind == null) {
+            return SagaStore.super.deleteSagaAsync(saga);
+        }
+        return writeBehind.write(new SagaWrite(saga.getSagaId(), null, null), Set.copyOf(saga.getLinkedEntities()));
+    }
+
+    /**
+     * Stop the write-behind, flushing the queued writes. Stores with a write-behind call this when they're closed.
+     */
+    protected void stopWriteBehind() {
+        if (writeBehind != null) {
+            writeBehind.stop();
+        }
+    }
+
+    /**
+     * Capture the saga for a write, as a delta of the changes since it was last written when it was stored before. The
+     * saga is only marked as persisted by the caller, once the write can no longer be lost.
+     */
+    private <S extends Saga<S>> SagaWrite toSagaWrite(S saga) {
+        var sagaData = toSagaData(saga);
+        SagaDelta delta = null;
+        if (saga.isPersisted()) {
+            delta = new SagaDelta(
+                    sagaData.id(),
+                    sagaData.sagaClassName(),
+                    saga.isStateChanged() ? sagaData.sagaState() : null,
+                    Set.copyOf(saga.getNewlyLinkedEntities()),
+                    saga.isTimeoutChanged() ? sagaData.scheduledTimeout() : null,
+                    Arrays.equals(saga.getPersistedFieldData(), sagaData.fieldData()) ? null : sagaData.fieldData()
+            );
+        }
+        return new SagaWrite(sagaData.id(), sagaData, delta);
+    }
+
+    private void write(SagaWrite write) {
+        if (write.isDelete()) {
+            doDeleteSaga(write.id());
+        } else if (write.delta() == null) {
+            doStore(write.sagaData());
+        } else if (!write.delta().isEmpty() && !doUpdate(write.delta())) {
+            doStore(write.sagaData());
+        }
+    }
+
+    private <S extends Saga<S>> SagaData toSagaData(S saga) {
+        try {
+            return new SagaData(
+                    saga.getSagaId(),
+                    saga.getClass().getName(),
+                    saga.getCreated(),
+                    saga.getCurrentState(),
+                    Set.copyOf(saga.getLinkedEntities()),
+                    saga.getScheduledTimeout(),
+                    saga instanceof TypedSaga<?, ?> typedSaga ? stateCodec.encode(typedSaga) : jsonMapper.writeValueAsBytes(saga.getFieldData())
+            );
+        } catch (IOException e) {
+            throw new RuntimeException("Could not serialize the state of Saga " + saga.getSagaId(), e);
+        }
     }
 
     @SuppressWarnings("rawtypes")
@@ -84,9 +266,110 @@ public abstract class AbstractSagaStore implements SagaStore {
     ) {
 
     }
+
+    /**
+     * The changes of a stored saga since it was last written: its new state, the entities linked since, its new
+     * scheduled timeout and its new field data, each null when unchanged.
+     */
+    @SuppressWarnings("rawtypes")
+    record SagaDelta(
+            SagaId id,
+            String sagaClassName,
+            SagaState sagaState,
+            Set<Id> linkedEntities,
+            Instant scheduledTimeout,
+            byte[] fieldData
+    ) {
+
+        boolean isEmpty() {
+            return sagaState == null && linkedEntities.isEmpty() && scheduledTimeout == null && fieldData == null;
+        }
+
+        SagaDelta merge(SagaDelta later) {
+            var entities = new LinkedHashSet<Id>(linkedEntities);
+            entities.addAll(later.linkedEntities);
+            return new SagaDelta(
+                    id,
+                    sagaClassName,
+                    later.sagaState != null ? later.sagaState : sagaState,
+                    entities,
+                    later.scheduledTimeout != null ? later.scheduledTimeout : scheduledTimeout,
+                    later.fieldData != null ? later.fieldData : fieldData
+            );
+        }
+
+        SagaData applyTo(SagaData sagaData) {
+            Set<Id> entities = sagaData.associatedEntities();
+            if (!linkedEntities.isEmpty()) {
+                entities = new LinkedHashSet<>(entities);
+                entities.addAll(linkedEntities);
+            }
+            return new SagaData(
+                    sagaData.id(),
+                    sagaData.sagaClassName(),
+                    sagaData.created(),
+                    sagaState != null ? sagaState : sagaData.sagaState(),
+                    entities,
+                    scheduledTimeout != null ? scheduledTimeout : sagaData.scheduledTimeout(),
+                    fieldData != null ? fieldData : sagaData.fieldData()
+            );
+        }
+    }
+
+    /**
+     * A queued write of a saga: its full saga data, plus its delta when it was stored before. Without saga data it's a
+     * delete.
+     */
+    @SuppressWarnings("rawtypes")
+    record SagaWrite(SagaId id, SagaData sagaData, SagaDelta delta) {
+
+        boolean isDelete() {
+            return sagaData == null;
+        }
+
+        SagaWrite coalesce(SagaWrite later) {
+            if (isDelete() || later.isDelete()) {
+                return later;
+            }
+            var mergedDelta = delta == null || later.delta == null ? null : delta.merge(later.delta);
+            return new SagaWrite(id, later.sagaData, mergedDelta);
+        }
+
+        /**
+         * @return this write with the full saga data instead of a delta
+         */
+        SagaWrite fullWrite() {
+            return new SagaWrite(id, sagaData, null);
+        }
+    }
+
     protected abstract <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<SagaData> doFindAssociatedSagas(I id, Class<S> sagaClass);
 
+    /**
+     * Find the data of a saga by its id, used to deliver its timeout. The default finds nothing, stores that override
+     * this should also override {@link #supportsFindSaga()} to return true.
+     */
+    protected <S extends Saga<S>> Mono<SagaData> doFindSaga(SagaId<S> sagaId) {
+        return Mono.empty();
+    }
+
     protected abstract void doStore(SagaData sagaData);
 
+    /**
+     * Write only the changes of a stored saga. Returns false when the store can't patch its records, or doesn't hold
+     * the saga, in which case the full saga data is written instead; the default.
+     */
+    protected boolean doUpdate(SagaDelta delta) {
+        return false;
+    }
+
+    /**
+     * Write a batch of queued writes, stores that can write several sagas at once override this. A failure fails all
+     * the writes of the batch.
+     */
+    protected void doWriteBatch(List<SagaWrite> writes) {
+        writes.forEach(this::write);
+    }
+
     protected abstract <S extends Saga<S>> void doDeleteSaga(SagaId<S> sagaId);
 }
@@ -0,0 +1,16 @@
+package be.idevelop.cqrs;
+
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+public record AggregateEventMessages<I extends Id<A, I>, A extends AggregateRoot<A, I>>(
+        List<EventMessage<I, ? extends Record>> eventMessages,
+        Class<A> clazz,
+        long expectedVersion
+) {
+
+    Mono<Boolean> saveTo(EventRepository eventRepository) {
+        return eventRepository.saveEventMessages(eventMessages, clazz, expectedVersion);
+    }
+}
@@ -1,21 +1,18 @@
 package be.idevelop.cqrs;
 
-import io.micronaut.context.ApplicationContext;
-import io.micronaut.context.Qualifier;
 import io.micronaut.context.annotation.Parameter;
 import io.micronaut.core.annotation.Introspected;
 import io.micronaut.core.beans.BeanIntrospector;
-import io.micronaut.core.order.OrderUtil;
-import io.micronaut.inject.qualifiers.Qualifiers;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.Flux;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 @Introspected
 public abstract class AggregateRoot<THIS extends AggregateRoot<THIS, I>, I extends Id<THIS, I>> implements Entity<THIS, I> {
@@ -26,10 +23,14 @@ public abstract class AggregateRoot<THIS extends AggregateRoot<THIS, I>, I exten
 
     long version = -1;
 
+    long snapshotVersion = -1;
+
+    Instant snapshotTimestamp;
+
     private final List<EventMessage<I, ? extends Record>> eventMessages;
 
     @Inject
-    private ApplicationContext applicationContext;
+    private EventHandlerRegistry eventHandlerRegistry;
 
     protected AggregateRoot(@Parameter I id) {
         this.id = id;
@@ -65,20 +66,31 @@ public abstract class AggregateRoot<THIS extends AggregateRoot<THIS, I>, I exten
         return false;
     }
 
+    @SuppressWarnings({"rawtypes", "unchecked"})
     private void dispatch(EventMessage<I, ? extends Record> eventMessage) {
-        //noinspection unchecked
-        getCqrsEventHandlers(eventMessage)
-                .sort(OrderUtil.COMPARATOR)
-                .doOnNext(handler -> handler.onEvent(this, eventMessage.event()))
-                .doOnError(throwable -> LOGGER.warn("Failed handling event"))
-                .doOnComplete(() -> this.version = eventMessage.eventMeta().version())
-                .subscribe();
+        CqrsEventHandler[] handlers = getCqrsEventHandlers(eventMessage);
+        try {
+            for (CqrsEventHandler handler : handlers) {
+                handler.onEvent(this, eventMessage.event());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed handling event", e);
+            return;
+        }
+        this.version = eventMessage.eventMeta().version();
     }
 
     final List<EventMessage<I, ? extends Record>> eventMessages() {
         return Collections.unmodifiableList(this.eventMessages);
     }
 
+    /**
+     * The version of the last saved event this aggregate root was based on, before the events it registered since.
+     */
+    final long expectedVersion() {
+        return this.eventMessages.isEmpty() ? this.version : this.eventMessages.get(0).eventMeta().version() - 1;
+    }
+
     final THIS markSaved() {
         this.eventMessages.clear();
         //noinspection unchecked
@@ -89,19 +101,44 @@ public abstract class AggregateRoot<THIS extends AggregateRoot<THIS, I>, I exten
         return id;
     }
 
-    @SuppressWarnings({"rawtypes"})
-    Flux<CqrsEventHandler> getCqrsEventHandlers(EventMessage<I, ? extends Record> eventMessage) {
-        Qualifier<CqrsEventHandler> qualifier = Qualifiers.byTypeArguments(this.getClass(), eventMessage.event().getClass());
+    /**
+     * Override together with {@link #hydrateFieldData(Map)} to allow snapshots of this aggregate root, so it doesn't need
+     * to replay its full event stream when retrieved. Returning null, the default, disables snapshots.
+     *
+     * @return the state of this aggregate root, or null when it doesn't support snapshots.
+     */
+    protected Map<String, Object> getFieldData() {
+        return null;
+    }
 
-        var beansOfType = this.applicationContext.getBeansOfType(CqrsEventHandler.class, qualifier);
+    protected void hydrateFieldData(Map<String, Object> fieldData) {
+        throw new UnsupportedOperationException("Aggregate root " + this.getClass() + " does not support snapshots");
+    }
+
+    final THIS restore(long version, Instant timestamp, Map<String, Object> fieldData) {
+        this.hydrateFieldData(fieldData);
+        this.version = version;
+        return markSnapshotted(version, timestamp);
+    }
+
+    final THIS markSnapshotted(long version, Instant timestamp) {
+        this.snapshotVersion = version;
+        this.snapshotTimestamp = timestamp;
+        //noinspection unchecked
+        return (THIS) this;
+    }
+
+    @SuppressWarnings({"rawtypes"})
+    CqrsEventHandler[] getCqrsEventHandlers(EventMessage<I, ? extends Record> eventMessage) {
+        var handlers = this.eventHandlerRegistry.getCqrsEventHandlers(this.getClass(), eventMessage.event().getClass());
         if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Found event handler {} for event: {} - {}", beansOfType, eventMessage.event(), beansOfType.size());
+            LOGGER.trace("Found event handler {} for event: {} - {}", Arrays.toString(handlers), eventMessage.event(), handlers.length);
         }
-        return Flux.fromIterable(beansOfType);
+        return handlers;
     }
 
-    final AggregateRoot<THIS, I> setApplicationContext(ApplicationContext applicationContext) {
-        this.applicationContext = applicationContext;
+    final AggregateRoot<THIS, I> setEventHandlerRegistry(EventHandlerRegistry eventHandlerRegistry) {
+        this.eventHandlerRegistry = eventHandlerRegistry;
         return this;
     }
 }
@@ -0,0 +1,83 @@
+package be.idevelop.cqrs;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of hydrated aggregate roots, owned by a single {@link CqrsScheduler} shard or mailbox and only accessed from within it,
+ * so it needs no locking. An aggregate root is taken out of the cache while a command is processed and only put back
+ * once its events are saved, so a failed command never leaves a stale aggregate root behind.
+ * <p>
+ * Entries are evicted least recently used once the cache holds more than {@code maxSize} aggregate roots, and are
+ * held through soft references so the garbage collector reclaims them under memory pressure.
+ */
+final class AggregateRootCache {
+
+    private final int maxSize;
+
+    private final Map<Id<?, ?>, SoftReference<AggregateRoot<?, ?>>> entries;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    AggregateRootCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id<?, ?>, SoftReference<AggregateRoot<?, ?>>> eldest) {
+                if (size() > AggregateRootCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> A take(I objectId, Class<A> clazz) {
+        if (!isEnabled()) {
+            return null;
+        }
+        var reference = entries.remove(objectId);
+        var aggregateRoot = reference == null ? null : reference.get();
+        if (clazz.isInstance(aggregateRoot)) {
+            hits.increment();
+            return clazz.cast(aggregateRoot);
+        }
+        if (reference != null) {
+            evictions.increment();
+        }
+        misses.increment();
+        return null;
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> void put(A aggregateRoot) {
+        if (!isEnabled() || !aggregateRoot.eventMessages().isEmpty()) {
+            return;
+        }
+        var current = entries.get(aggregateRoot.getId());
+        var cached = current == null ? null : current.get();
+        if (cached == null || cached.version <= aggregateRoot.version) {
+            entries.put(aggregateRoot.getId(), new SoftReference<>(aggregateRoot));
+        }
+    }
+
+    void invalidate(Id<?, ?> objectId) {
+        if (isEnabled()) {
+            entries.remove(objectId);
+        }
+    }
+
+    CacheStatistics statistics() {
+        return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+}
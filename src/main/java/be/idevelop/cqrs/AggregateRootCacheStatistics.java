@@ -0,0 +1,23 @@
+package be.idevelop.cqrs;
+
+import jakarta.inject.Singleton;
+
+import java.util.List;
+
+@Singleton
+public final class AggregateRootCacheStatistics {
+
+    private final CqrsScheduler cqrsScheduler;
+
+    AggregateRootCacheStatistics(CqrsScheduler cqrsScheduler) {
+        this.cqrsScheduler = cqrsScheduler;
+    }
+
+    public List<CacheStatistics> perShard() {
+        return cqrsScheduler.cacheStatistics();
+    }
+
+    public CacheStatistics total() {
+        return perShard().stream().reduce(new CacheStatistics(0, 0, 0, 0), CacheStatistics::plus);
+    }
+}
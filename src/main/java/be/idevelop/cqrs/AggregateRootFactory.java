@@ -1,6 +1,5 @@
 package be.idevelop.cqrs;
 
-import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.annotation.Bean;
 import io.micronaut.context.annotation.Factory;
 import io.micronaut.core.beans.BeanIntrospection;
@@ -10,12 +9,12 @@ import jakarta.inject.Inject;
 final class AggregateRootFactory {
 
     @Inject
-    private ApplicationContext applicationContext;
+    private EventHandlerRegistry eventHandlerRegistry;
 
     @Bean
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> A createNewAggregateRootInstance(I objectId, Class<A> clazz) {
         BeanIntrospection<A> introspection = BeanIntrospection.getIntrospection(clazz);
         //noinspection unchecked
-        return (A) introspection.instantiate(objectId).setApplicationContext(applicationContext);
+        return (A) introspection.instantiate(objectId).setEventHandlerRegistry(eventHandlerRegistry);
     }
 }
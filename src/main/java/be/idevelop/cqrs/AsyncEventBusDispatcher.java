@@ -0,0 +1,181 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches events to the {@link CqrsEventBusHandler}s outside the command pipeline. Every handler class gets its own
+ * lane: a bounded queue drained by a dedicated thread, so a slow handler only delays itself and the events it receives
+ * keep their order, including the order per aggregate root. Lanes are keyed by class rather than by instance, so handlers
+ * that aren't singletons share their lane instead of leaving a thread behind for every instance. A failing event is retried with a fixed backoff and logged when it
+ * keeps failing, without affecting other handlers or the command that published it. Publishing blocks while the lane of
+ * a handler is full. On shutdown the lanes drain the events they already accepted, the events still queued once the
+ * shutdown timeout elapsed are dropped and logged.
+ */
+@Singleton
+final class AsyncEventBusDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncEventBusDispatcher.class);
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final CqrsMetrics metrics;
+
+    private final boolean enabled;
+
+    private final int queueCapacity;
+
+    private final int maxAttempts;
+
+    private final long backoffMillis;
+
+    private final Duration shutdownTimeout;
+
+    @SuppressWarnings("rawtypes")
+    private final Map<Class<? extends CqrsEventBusHandler>, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger laneCounter = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    @Inject
+    AsyncEventBusDispatcher(CqrsMetrics metrics,
+                            @Value("${cqrs.eventBus.async.enabled:false}") boolean enabled,
+                            @Value("${cqrs.eventBus.async.queueCapacity:1024}") int queueCapacity,
+                            @Value("${cqrs.eventBus.async.maxAttempts:3}") int maxAttempts,
+                            @Value("${cqrs.eventBus.async.backoff:100ms}") Duration backoff,
+                            @Value("${cqrs.eventBus.async.shutdownTimeout:5s}") Duration shutdownTimeout) {
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.queueCapacity = queueCapacity;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = backoff.toMillis();
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @SuppressWarnings("rawtypes")
+    <I extends Id<?, I>> void dispatch(CqrsEventBusHandler handler, Record event, EventMeta<I> eventMeta) {
+        if (!running) {
+            LOGGER.warn("Event bus dispatcher is stopped, not dispatching {} to {}", event, handler);
+            return;
+        }
+        try {
+            lanes.computeIfAbsent(handler.getClass(), Lane::new).queue.put(new Dispatch(handler, event, eventMeta));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while dispatching {} to {}", event, handler);
+        }
+    }
+
+    /**
+     * Number of events waiting for their handler, over all lanes.
+     */
+    int pending() {
+        return lanes.values().stream().mapToInt(lane -> lane.queue.size()).sum();
+    }
+
+    int lanes() {
+        return lanes.size();
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        var deadline = System.nanoTime() + shutdownTimeout.toNanos();
+        for (Lane lane : lanes.values()) {
+            try {
+                lane.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (lane.thread.isAlive()) {
+                lane.thread.interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private record Dispatch(CqrsEventBusHandler handler, Record event, EventMeta<?> eventMeta) {
+    }
+
+    @SuppressWarnings("rawtypes")
+    private final class Lane {
+
+        private final Class<? extends CqrsEventBusHandler> handlerClass;
+
+        private final BlockingQueue<Dispatch> queue = new LinkedBlockingQueue<>(queueCapacity);
+
+        private final Thread thread;
+
+        private Lane(Class<? extends CqrsEventBusHandler> handlerClass) {
+            this.handlerClass = handlerClass;
+            this.thread = new Thread(this::drain, "cqrs-event-bus-" + laneCounter.getAndIncrement());
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /**
+         * Handle the queued events until the dispatcher stopped and the queue is empty, polling so a stopped lane
+         * notices it without being interrupted. An interrupt means the shutdown timeout elapsed.
+         */
+        private void drain() {
+            while (running || !queue.isEmpty()) {
+                Dispatch dispatch = null;
+                try {
+                    dispatch = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (dispatch != null) {
+                        handle(dispatch);
+                    }
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        var dropped = queue.size() + (dispatch == null ? 0 : 1);
+                        if (dropped > 0) {
+                            LOGGER.warn("Dropped {} events for {} that were not handled within the shutdown timeout of {}", dropped, handlerClass.getName(), shutdownTimeout);
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Handle the event, timing every attempt as the event handlers stage like the synchronous event bus does.
+         */
+        @SuppressWarnings("unchecked")
+        private void handle(Dispatch dispatch) throws InterruptedException {
+            var handler = dispatch.handler();
+            var handled = Mono.fromRunnable(() -> handler.onEvent(dispatch.event(), dispatch.eventMeta()));
+            var timed = metrics.time(CqrsMetrics.Stage.EVENT_HANDLERS, handled, dispatch.eventMeta().objectId().getEntityClass(), dispatch.event().getClass());
+            for (var attempt = 1; ; attempt++) {
+                try {
+                    timed.block();
+                    return;
+                } catch (RuntimeException e) {
+                    if (attempt >= maxAttempts) {
+                        LOGGER.error("Failed handling {} on {} after {} attempts", dispatch.event(), handler, attempt, e);
+                        return;
+                    }
+                    LOGGER.debug("Failed handling {} on {}, retrying", dispatch.event(), handler, e);
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package be.idevelop.cqrs;
+
+public record CacheStatistics(long hits, long misses, long evictions, long size) {
+
+    CacheStatistics plus(CacheStatistics other) {
+        return new CacheStatistics(hits + other.hits, misses + other.misses, evictions + other.evictions, size + other.size);
+    }
+}
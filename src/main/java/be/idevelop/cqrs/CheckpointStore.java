@@ -0,0 +1,17 @@
+package be.idevelop.cqrs;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Keeps the position in the global event log up to which a reader, like the outbox relay or a subscription, processed
+ * the events.
+ */
+public interface CheckpointStore {
+
+    /**
+     * @return the saved position of the named reader, or empty when it never saved one
+     */
+    Mono<Long> loadCheckpoint(String name);
+
+    Mono<Void> saveCheckpoint(String name, long position);
+}
@@ -1,10 +1,30 @@
 package be.idevelop.cqrs;
 
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface CommandBus {
 
+    /**
+     * Publish the command without waiting for it to be handled.
+     *
+     * @throws CommandRejectedException when the command queue of its aggregate root is full and doesn't accept it
+     */
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> void publish(Command<I> command);
 
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<I> publishAndWait(Command<I> command);
+
+    /**
+     * Publish the commands one after the other, requesting the next command only after the previous one was handled
+     * and its result was requested downstream.
+     */
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<I> publishEach(Publisher<? extends Command<I>> commands);
+
+    /**
+     * Publish commands for any number of aggregate roots, handling commands for different aggregate roots concurrently
+     * while keeping the order of the commands for the same aggregate root. A result is emitted for every command once
+     * it is handled, failed commands don't stop the stream.
+     */
+    Flux<CommandResult> publishAll(Publisher<? extends Command<?>> commands);
 }
@@ -0,0 +1,60 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.core.beans.BeanIntrospector;
+import io.micronaut.core.reflect.GenericTypeUtils;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Modifier;
+import java.util.Optional;
+
+/**
+ * Resolves the command handlers for every (aggregate root, command) pair once at startup, so dispatching a command is a
+ * lookup without allocations. Pairs that could not be discovered at startup are resolved on first use and memoized.
+ */
+@Context
+@SuppressWarnings("rawtypes")
+final class CommandHandlerRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandHandlerRegistry.class);
+
+    private final HandlerTable<CqrsCommandHandler> handlers;
+
+    @Inject
+    CommandHandlerRegistry(ApplicationContext applicationContext) {
+        this.handlers = new HandlerTable<>(applicationContext, CqrsCommandHandler.class, Command.class, new CqrsCommandHandler[0]);
+        this.handlers.preload();
+        reportCommandsWithoutHandler();
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> CqrsCommandHandler[] getCqrsCommandHandlers(Class<A> aggregateRootClass, Class<?> commandClass) {
+        return this.handlers.get(aggregateRootClass, commandClass);
+    }
+
+    private void reportCommandsWithoutHandler() {
+        for (var introspection : BeanIntrospector.SHARED.findIntrospections(reference -> Command.class.isAssignableFrom(reference.getBeanType()))) {
+            Class<?> commandClass = introspection.getBeanType();
+            if (commandClass.isInterface() || Modifier.isAbstract(commandClass.getModifiers())) {
+                continue;
+            }
+            aggregateRootClassOf(commandClass)
+                    .filter(aggregateRootClass -> this.handlers.get(aggregateRootClass, commandClass).length == 0)
+                    .ifPresent(aggregateRootClass -> LOGGER.warn("No command handler found for command {} on aggregate root {}", commandClass.getName(), aggregateRootClass.getName()));
+        }
+    }
+
+    private static Optional<Class<?>> aggregateRootClassOf(Class<?> commandClass) {
+        Class<?>[] commandTypeArguments = GenericTypeUtils.resolveInterfaceTypeArguments(commandClass, Command.class);
+        if (commandTypeArguments.length != 1 || commandTypeArguments[0] == null) {
+            return Optional.empty();
+        }
+        Class<?>[] idTypeArguments = GenericTypeUtils.resolveInterfaceTypeArguments(commandTypeArguments[0], Id.class);
+        if (idTypeArguments.length == 0 || idTypeArguments[0] == null || !AggregateRoot.class.isAssignableFrom(idTypeArguments[0])) {
+            return Optional.empty();
+        }
+        return Optional.of(idTypeArguments[0]);
+    }
+}
@@ -0,0 +1,343 @@
+package be.idevelop.cqrs;
+
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of commands waiting for their {@link CqrsScheduler} shard. At most one drain task per shard is handed to its
+ * scheduler, so the commands waiting for a shard are bounded by the queue capacity instead of piling up in the
+ * scheduler's executor. The capacity covers the queued, parked and in flight commands, a command only frees its place
+ * once it completed. Queues can share a {@link Capacity}, so the mailboxes of all aggregate roots are bounded together.
+ * What happens when a command is published to a full queue is decided by the {@link OverflowPolicy}.
+ * <p>
+ * A command is only started once the previous command for its aggregate root completed, including the asynchronous
+ * save of its events, so commands for the same aggregate root never overlap even when their save releases the shard
+ * thread. Commands for an aggregate root with a command in flight are parked until it completes and then handed back to
+ * the front of the queue, in order.
+ * <p>
+ * When coalescing, the drain also takes the later queued commands for the same aggregate root, so they are handled in a
+ * single unit of work.
+ */
+final class CommandQueue {
+
+    private static final int DRAIN_BATCH_SIZE = 64;
+
+    interface Entry {
+
+        Command<?> command();
+
+        /**
+         * Start processing the command together with the coalesced later commands for the same aggregate root, called
+         * on the shard thread. {@code done} must be run once they all completed, the next command for the aggregate root
+         * waits for it.
+         */
+        void run(List<Entry> coalesced, Runnable done);
+
+        void reject(CommandRejectedException e);
+    }
+
+    private final CqrsScheduler.Shard shard;
+
+    private final Capacity capacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final boolean coalesce;
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    private final Set<Id<?, ?>> inFlight = new HashSet<>();
+
+    private final Map<Id<?, ?>, Deque<Entry>> parked = new HashMap<>();
+
+    private int parkedCount;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    CommandQueue(CqrsScheduler.Shard shard, Capacity capacity, OverflowPolicy overflowPolicy, boolean coalesce) {
+        this.shard = shard;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * @throws CommandRejectedException when the queue is full and the overflow policy rejects the entry
+     */
+    void offer(Entry entry) {
+        Entry dropped = null;
+        if (!capacity.tryAcquire()) {
+            switch (overflowPolicy) {
+                case BLOCK -> awaitCapacity(entry);
+                case REJECT -> throw new CommandRejectedException(entry.command(), "command queue is full");
+                case DROP_OLDEST -> {
+                    // the new entry takes over the place of the dropped one
+                    dropped = pollOldest();
+                    if (dropped == null) {
+                        // every command of this queue waits for its aggregate root, none of them can be dropped
+                        throw new CommandRejectedException(entry.command(), "command queue is full");
+                    }
+                }
+            }
+        }
+        lock.lock();
+        try {
+            entries.addLast(entry);
+        } finally {
+            lock.unlock();
+        }
+        if (dropped != null) {
+            dropped.reject(new CommandRejectedException(dropped.command(), "dropped from full command queue"));
+        }
+        scheduleDrain();
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size() + parkedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether no command is queued, parked or in flight
+     */
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return entries.isEmpty() && parkedCount == 0 && inFlight.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry pollOldest() {
+        lock.lock();
+        try {
+            return entries.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitCapacity(Entry entry) {
+        if (shard.isShardThread()) {
+            // the shard would wait for itself to drain the queue
+            throw new CommandRejectedException(entry.command(), "command queue is full and publishing from its own shard");
+        }
+        if (Schedulers.isInNonBlockingThread()) {
+            // parking an event loop or parallel thread stalls everything else it runs, including the completion of the
+            // commands that would free the queue
+            throw new CommandRejectedException(entry.command(), "command queue is full and publishing from a non-blocking thread");
+        }
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandRejectedException(entry.command(), "interrupted while waiting for the command queue");
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            shard.scheduler().schedule(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (var i = 0; i < DRAIN_BATCH_SIZE; i++) {
+                var entry = poll();
+                if (entry == null) {
+                    break;
+                }
+                var coalesced = coalesce ? pollCoalesced(entry) : List.<Entry>of();
+                Runnable done = new Completion(entry.command().objectId(), 1 + coalesced.size());
+                try {
+                    entry.run(coalesced, done);
+                } catch (RuntimeException e) {
+                    done.run();
+                    throw e;
+                }
+            }
+        } finally {
+            drainScheduled.set(false);
+            if (hasRunnableEntries()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * @return the first queued entry whose aggregate root has no command in flight, parking the entries it passes
+     */
+    private Entry poll() {
+        lock.lock();
+        try {
+            Entry entry;
+            while ((entry = entries.pollFirst()) != null) {
+                var objectId = entry.command().objectId();
+                if (inFlight.add(objectId)) {
+                    return entry;
+                }
+                parked.computeIfAbsent(objectId, key -> new ArrayDeque<>()).addLast(entry);
+                parkedCount++;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasRunnableEntries() {
+        lock.lock();
+        try {
+            return !entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the aggregate root once its commands completed, handing its parked commands back to the front of the
+     * queue.
+     */
+    private void complete(Id<?, ?> objectId, int commands) {
+        boolean unparked;
+        lock.lock();
+        try {
+            inFlight.remove(objectId);
+            var waiting = parked.remove(objectId);
+            unparked = waiting != null;
+            if (unparked) {
+                parkedCount -= waiting.size();
+                waiting.descendingIterator().forEachRemaining(entries::addFirst);
+            }
+        } finally {
+            lock.unlock();
+        }
+        capacity.release(commands);
+        if (unparked) {
+            scheduleDrain();
+        }
+    }
+
+    private List<Entry> pollCoalesced(Entry first) {
+        var objectId = first.command().objectId();
+        List<Entry> coalesced = new ArrayList<>();
+        lock.lock();
+        try {
+            var iterator = entries.iterator();
+            while (iterator.hasNext() && coalesced.size() < DRAIN_BATCH_SIZE) {
+                var entry = iterator.next();
+                if (objectId.equals(entry.command().objectId())) {
+                    iterator.remove();
+                    coalesced.add(entry);
+                }
+            }
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of commands one or more queues hold, from the moment they're offered until they completed.
+     */
+    static final class Capacity {
+
+        private final int limit;
+
+        private final AtomicInteger used = new AtomicInteger();
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition released = lock.newCondition();
+
+        private volatile int waiting;
+
+        /**
+         * @param limit the maximum number of commands, 0 for no limit
+         */
+        Capacity(int limit) {
+            this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+        }
+
+        boolean tryAcquire() {
+            int current;
+            do {
+                current = used.get();
+                if (current >= limit) {
+                    return false;
+                }
+            } while (!used.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                waiting++;
+                while (!tryAcquire()) {
+                    released.await();
+                }
+            } finally {
+                waiting--;
+                lock.unlock();
+            }
+        }
+
+        void release(int commands) {
+            used.addAndGet(-commands);
+            if (waiting > 0) {
+                lock.lock();
+                try {
+                    released.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        int used() {
+            return used.get();
+        }
+    }
+
+    private final class Completion implements Runnable {
+
+        private final Id<?, ?> objectId;
+
+        private final int commands;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Completion(Id<?, ?> objectId, int commands) {
+            this.objectId = objectId;
+            this.commands = commands;
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                complete(objectId, commands);
+            }
+        }
+    }
+}
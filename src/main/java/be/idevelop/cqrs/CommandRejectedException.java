@@ -0,0 +1,18 @@
+package be.idevelop.cqrs;
+
+/**
+ * Thrown when a command is not accepted, or dropped again, because the command queue of its aggregate root is full.
+ */
+public class CommandRejectedException extends RuntimeException {
+
+    private final transient Command<?> command;
+
+    public CommandRejectedException(Command<?> command, String reason) {
+        super("Rejected command " + command + ": " + reason);
+        this.command = command;
+    }
+
+    public Command<?> getCommand() {
+        return command;
+    }
+}
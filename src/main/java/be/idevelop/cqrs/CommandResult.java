@@ -0,0 +1,11 @@
+package be.idevelop.cqrs;
+
+/**
+ * Outcome of a single command published through {@link CommandBus#publishAll}.
+ */
+public record CommandResult(Command<?> command, Throwable error) {
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,33 @@
+package be.idevelop.cqrs;
+
+/**
+ * Thrown when events are saved for an aggregate root whose last saved version differs from the version the events were
+ * based on, i.e. another command or instance saved events for the same aggregate root in the meantime.
+ */
+public class ConcurrencyConflictException extends RuntimeException {
+
+    private final transient Id<?, ?> objectId;
+
+    private final long expectedVersion;
+
+    private final long actualVersion;
+
+    public ConcurrencyConflictException(Id<?, ?> objectId, long expectedVersion, long actualVersion) {
+        super("Expected version " + expectedVersion + " of " + objectId + " but found version " + actualVersion);
+        this.objectId = objectId;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public Id<?, ?> getObjectId() {
+        return objectId;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getActualVersion() {
+        return actualVersion;
+    }
+}
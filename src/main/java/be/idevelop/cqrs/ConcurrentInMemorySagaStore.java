@@ -0,0 +1,197 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.core.util.StringUtils;
+import io.micronaut.json.JsonMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe in memory {@link SagaStore} for local runs and for measuring saga throughput without an external store.
+ * Sagas are kept per {@link SagaId}, next to an index from linked entity and saga class to the ids of the associated
+ * sagas, so finding, storing and deleting a saga don't depend on the number of stored sagas. Scheduled timeouts are
+ * kept in a sorted index, so the pending timeouts are read in order without scanning all sagas.
+ * <p>
+ * The store holds at most {@code cqrs.sagaStore.inMemory.maxSagas} sagas; storing a new saga beyond that limit fails.
+ * With {@code cqrs.sagaStore.writeBehind.batchSize} above 0 writes are queued and applied in batches, for at most
+ * {@code cqrs.sagaStore.writeBehind.maxPending} sagas at once.
+ */
+@Singleton
+@Requires(property = "cqrs.sagaStore.inMemory.enabled", value = StringUtils.TRUE)
+@SuppressWarnings("rawtypes")
+public class ConcurrentInMemorySagaStore extends AbstractSagaStore {
+
+    private static final Comparator<SagaTimeout> TIMEOUT_ORDER = Comparator.comparing(SagaTimeout::scheduledTimeout)
+            .thenComparing(timeout -> timeout.sagaId().value());
+
+    private static final SagaId LOWEST_SAGA_ID = new SagaId(new UUID(Long.MIN_VALUE, Long.MIN_VALUE), Saga.class);
+
+    private final int maxSagas;
+
+    private final ConcurrentMap<SagaId, SagaData> sagas = new ConcurrentHashMap<>();
+
+    private final AtomicInteger stored = new AtomicInteger();
+
+    private final ConcurrentMap<IndexKey, Set<SagaId>> associatedSagas = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListSet<SagaTimeout> scheduledTimeouts = new ConcurrentSkipListSet<>(TIMEOUT_ORDER);
+
+    public ConcurrentInMemorySagaStore(JsonMapper jsonMapper, int maxSagas) {
+        this(jsonMapper, new SagaStateCodec(jsonMapper), maxSagas, 0, Duration.ZERO);
+    }
+
+    public ConcurrentInMemorySagaStore(JsonMapper jsonMapper, int maxSagas, int writeBehindBatchSize, Duration writeBehindFlushInterval) {
+        this(jsonMapper, new SagaStateCodec(jsonMapper), maxSagas, writeBehindBatchSize, writeBehindFlushInterval);
+    }
+
+    public ConcurrentInMemorySagaStore(JsonMapper jsonMapper, SagaStateCodec stateCodec, int maxSagas, int writeBehindBatchSize, Duration writeBehindFlushInterval) {
+        this(jsonMapper, stateCodec, maxSagas, writeBehindBatchSize, 10_000, writeBehindFlushInterval);
+    }
+
+    @Inject
+    public ConcurrentInMemorySagaStore(JsonMapper jsonMapper,
+                                       SagaStateCodec stateCodec,
+                                       @Value("${cqrs.sagaStore.inMemory.maxSagas:1000000}") int maxSagas,
+                                       @Value("${cqrs.sagaStore.writeBehind.batchSize:0}") int writeBehindBatchSize,
+                                       @Value("${cqrs.sagaStore.writeBehind.maxPending:10000}") int writeBehindMaxPending,
+                                       @Value("${cqrs.sagaStore.writeBehind.flushInterval:10ms}") Duration writeBehindFlushInterval) {
+        super(jsonMapper, stateCodec, writeBehindBatchSize, writeBehindMaxPending, writeBehindFlushInterval);
+        this.maxSagas = maxSagas;
+    }
+
+    @PreDestroy
+    void close() {
+        stopWriteBehind();
+    }
+
+    @Override
+    protected <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<SagaData> doFindAssociatedSagas(I id, Class<S> sagaClass) {
+        var sagaIds = associatedSagas.get(new IndexKey(id, sagaClass.getName()));
+        if (sagaIds == null) {
+            return Flux.empty();
+        }
+        return Flux.fromIterable(sagaIds)
+                .flatMap(sagaId -> Mono.justOrEmpty(sagas.get(sagaId)));
+    }
+
+    @Override
+    protected <S extends Saga<S>> Mono<SagaData> doFindSaga(SagaId<S> sagaId) {
+        return Mono.justOrEmpty(sagas.get(sagaId));
+    }
+
+    @Override
+    public boolean supportsFindSaga() {
+        return true;
+    }
+
+    @Override
+    public Flux<SagaTimeout> findScheduledTimeouts(Instant before) {
+        return Flux.fromIterable(scheduledTimeouts.headSet(new SagaTimeout(LOWEST_SAGA_ID, before)));
+    }
+
+    @Override
+    protected void doStore(SagaData sagaData) {
+        sagas.compute(sagaData.id(), (sagaId, previous) -> {
+            if (previous == null) {
+                reserve(sagaId);
+            } else {
+                previous.associatedEntities().stream()
+                        .filter(id -> !sagaData.associatedEntities().contains(id))
+                        .forEach(id -> unindex(new IndexKey(id, previous.sagaClassName()), sagaId));
+                unindexTimeout(previous);
+            }
+            sagaData.associatedEntities()
+                    .forEach(id -> index(new IndexKey(id, sagaData.sagaClassName()), sagaId));
+            if (hasTimeout(sagaData)) {
+                scheduledTimeouts.add(new SagaTimeout(sagaId, sagaData.scheduledTimeout()));
+            }
+            return sagaData;
+        });
+    }
+
+    @Override
+    protected boolean doUpdate(SagaDelta delta) {
+        var updated = sagas.computeIfPresent(delta.id(), (sagaId, previous) -> {
+            delta.linkedEntities()
+                    .forEach(id -> index(new IndexKey(id, previous.sagaClassName()), sagaId));
+            var sagaData = delta.applyTo(previous);
+            if (delta.scheduledTimeout() != null) {
+                unindexTimeout(previous);
+                if (hasTimeout(sagaData)) {
+                    scheduledTimeouts.add(new SagaTimeout(sagaId, sagaData.scheduledTimeout()));
+                }
+            }
+            return sagaData;
+        });
+        return updated != null;
+    }
+
+    @Override
+    protected <S extends Saga<S>> void doDeleteSaga(SagaId<S> sagaId) {
+        sagas.computeIfPresent(sagaId, (key, previous) -> {
+            previous.associatedEntities()
+                    .forEach(id -> unindex(new IndexKey(id, previous.sagaClassName()), key));
+            unindexTimeout(previous);
+            stored.decrementAndGet();
+            return null;
+        });
+    }
+
+    /**
+     * Reserve room for a new saga, the count is reserved before the saga is inserted so concurrent inserts can't exceed
+     * the limit.
+     */
+    private void reserve(SagaId sagaId) {
+        if (stored.incrementAndGet() > maxSagas) {
+            stored.decrementAndGet();
+            throw new IllegalStateException("Cannot store Saga " + sagaId + ", the in memory saga store is full (" + maxSagas + " sagas)");
+        }
+    }
+
+    int size() {
+        return sagas.size();
+    }
+
+    private void index(IndexKey indexKey, SagaId sagaId) {
+        associatedSagas.compute(indexKey, (key, sagaIds) -> {
+            var result = sagaIds == null ? ConcurrentHashMap.<SagaId>newKeySet() : sagaIds;
+            result.add(sagaId);
+            return result;
+        });
+    }
+
+    private void unindex(IndexKey indexKey, SagaId sagaId) {
+        associatedSagas.computeIfPresent(indexKey, (key, sagaIds) -> {
+            sagaIds.remove(sagaId);
+            return sagaIds.isEmpty() ? null : sagaIds;
+        });
+    }
+
+    private void unindexTimeout(SagaData sagaData) {
+        if (hasTimeout(sagaData)) {
+            scheduledTimeouts.remove(new SagaTimeout(sagaData.id(), sagaData.scheduledTimeout()));
+        }
+    }
+
+    private static boolean hasTimeout(SagaData sagaData) {
+        return sagaData.scheduledTimeout() != null && !Instant.MAX.equals(sagaData.scheduledTimeout());
+    }
+
+    private record IndexKey(Id id, String sagaClassName) {
+
+    }
+}
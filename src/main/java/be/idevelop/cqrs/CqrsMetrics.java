@@ -0,0 +1,35 @@
+package be.idevelop.cqrs;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Instrumentation of the command, event and saga pipelines. Without a Micrometer {@code MeterRegistry} the
+ * {@link NoopCqrsMetrics} is used, which returns the timed publishers untouched.
+ */
+interface CqrsMetrics {
+
+    enum Stage {
+        COMMAND("cqrs.command", "command"),
+        RETRIEVE("cqrs.command.retrieve", null),
+        HANDLE("cqrs.command.handle", "command"),
+        STORE("cqrs.events.store", null),
+        PUBLISH("cqrs.events.publish", null),
+        EVENT_HANDLERS("cqrs.event.handlers", "event"),
+        SAGAS("cqrs.event.sagas", "event");
+
+        final String metricName;
+
+        final String messageTag;
+
+        Stage(String metricName, String messageTag) {
+            this.metricName = metricName;
+            this.messageTag = messageTag;
+        }
+    }
+
+    /**
+     * Time the subscription of the given mono, tagged with the aggregate root class and, for stages that have a message
+     * tag, the command or event class.
+     */
+    <T> Mono<T> time(Stage stage, Mono<T> mono, Class<?> aggregateRootClass, Class<?> messageClass);
+}
@@ -1,38 +1,193 @@
 package be.idevelop.cqrs;
 
 import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
 @Singleton
 final class CqrsScheduler {
 
+    /**
+     * Key of the Reactor context entry holding the scheduler of the shard a pipeline runs for, so work that completes
+     * on another thread continues on that shard.
+     */
+    static final String SHARD_CONTEXT_KEY = "cqrs.shard";
+
+    enum Mode {
+        /**
+         * A fixed number of single threaded shards, every aggregate root is pinned to one of them by its id.
+         */
+        SHARDED,
+        /**
+         * A serialized mailbox per active aggregate root, created on demand and reclaimed when idle.
+         */
+        MAILBOX
+    }
+
     private final int threadPoolSize;
-    private final Scheduler[] schedulers;
+    private final Shard[] shards;
+    private final MailboxScheduler mailboxScheduler;
 
-    CqrsScheduler(@Value("${cqrs.scheduler.prefix}") String prefix, @Value("${cqrs.scheduler.poolSize}") int threadPoolSize) {
+    CqrsScheduler(String prefix, int threadPoolSize) {
+        this(prefix, threadPoolSize, 0, 0, OverflowPolicy.BLOCK, false, Mode.SHARDED, Duration.ofMinutes(1));
+    }
+
+    @Inject
+    CqrsScheduler(@Value("${cqrs.scheduler.prefix}") String prefix,
+                  @Value("${cqrs.scheduler.poolSize}") int threadPoolSize,
+                  @Value("${cqrs.cache.maxSize:0}") int cacheMaxSize,
+                  @Value("${cqrs.commandQueue.capacity:0}") int queueCapacity,
+                  @Value("${cqrs.commandQueue.overflowPolicy:BLOCK}") OverflowPolicy overflowPolicy,
+                  @Value("${cqrs.commandQueue.coalesce:false}") boolean coalesce,
+                  @Value("${cqrs.scheduler.mode:SHARDED}") Mode mode,
+                  @Value("${cqrs.scheduler.mailboxIdleTimeout:1m}") Duration mailboxIdleTimeout) {
         this.threadPoolSize = threadPoolSize;
 
-        this.schedulers = new Scheduler[this.threadPoolSize];
-        for (var i = 0; i < this.schedulers.length; i++) {
-            this.schedulers[i] = Schedulers.fromExecutorService(Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(prefix + "-" + i)));
+        if (mode == Mode.MAILBOX) {
+            this.shards = new Shard[0];
+            this.mailboxScheduler = new MailboxScheduler(prefix, cacheMaxSize, queueCapacity, overflowPolicy, coalesce, mailboxIdleTimeout);
+        } else {
+            this.shards = new Shard[this.threadPoolSize];
+            for (var i = 0; i < this.shards.length; i++) {
+                this.shards[i] = new ThreadShard(prefix + "-" + i, cacheMaxSize, queueCapacity, overflowPolicy, coalesce);
+            }
+            this.mailboxScheduler = null;
         }
     }
 
     <I extends Id<?, I>> Scheduler schedule(I objectId) {
-        int index = Math.abs(objectId.hashCode()) % this.threadPoolSize;
-        return schedulers[index];
+        return shard(objectId).scheduler();
+    }
+
+    <I extends Id<?, I>> Shard shard(I objectId) {
+        if (mailboxScheduler != null) {
+            return mailboxScheduler.mailbox(objectId);
+        }
+        int index = Math.floorMod(objectId.hashCode(), this.threadPoolSize);
+        return shards[index];
+    }
+
+    boolean isMailboxMode() {
+        return mailboxScheduler != null;
+    }
+
+    int queueCount() {
+        return mailboxScheduler != null ? 1 : shards.length;
     }
 
-    private record NamedThreadFactory(String name) implements ThreadFactory {
+    /**
+     * Number of commands waiting in the command queue of the given shard, or in all mailboxes together.
+     */
+    int queueDepth(int index) {
+        if (mailboxScheduler != null) {
+            return mailboxScheduler.queueDepth();
+        }
+        return shards[index].commandQueue().size();
+    }
+
+    /**
+     * Number of commands waiting in the command queue of the busiest mailbox.
+     */
+    int maxMailboxQueueDepth() {
+        return mailboxScheduler != null ? mailboxScheduler.maxQueueDepth() : 0;
+    }
+
+    int mailboxCount() {
+        return mailboxScheduler != null ? mailboxScheduler.size() : 0;
+    }
+
+    List<CacheStatistics> cacheStatistics() {
+        if (mailboxScheduler != null) {
+            return List.of(mailboxScheduler.cacheStatistics());
+        }
+        return Arrays.stream(shards).map(shard -> shard.cache().statistics()).toList();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (mailboxScheduler != null) {
+            mailboxScheduler.shutdown();
+        }
+        Arrays.stream(shards).forEach(shard -> shard.scheduler().dispose());
+    }
+
+    /**
+     * Serialized execution context of one or more aggregate roots, together with the queue of commands waiting for it
+     * and the cache of aggregate roots that is only accessed from within that context.
+     */
+    abstract static class Shard {
+
+        private final AggregateRootCache cache;
+
+        private final CommandQueue commandQueue;
+
+        Shard(AggregateRootCache cache, int queueCapacity, OverflowPolicy overflowPolicy, boolean coalesce) {
+            this(cache, new CommandQueue.Capacity(queueCapacity), overflowPolicy, coalesce);
+        }
+
+        Shard(AggregateRootCache cache, CommandQueue.Capacity queueCapacity, OverflowPolicy overflowPolicy, boolean coalesce) {
+            this.cache = cache;
+            this.commandQueue = new CommandQueue(this, queueCapacity, overflowPolicy, coalesce);
+        }
+
+        abstract Scheduler scheduler();
+
+        abstract boolean isShardThread();
+
+        AggregateRootCache cache() {
+            return cache;
+        }
+
+        CommandQueue commandQueue() {
+            return commandQueue;
+        }
+
+        /**
+         * Cache the saved aggregate root, hopping back to the shard when the event repository completed on another
+         * thread.
+         */
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> putInCache(A aggregateRoot) {
+            if (!cache.isEnabled()) {
+                return Mono.just(aggregateRoot);
+            }
+            if (isShardThread()) {
+                cache.put(aggregateRoot);
+                return Mono.just(aggregateRoot);
+            }
+            return Mono.fromCallable(() -> {
+                cache.put(aggregateRoot);
+                return aggregateRoot;
+            }).subscribeOn(scheduler());
+        }
+    }
+
+    private static final class ThreadShard extends Shard {
+
+        private final Scheduler scheduler;
+        private volatile Thread thread;
+
+        private ThreadShard(String name, int cacheMaxSize, int queueCapacity, OverflowPolicy overflowPolicy, boolean coalesce) {
+            super(new AggregateRootCache(cacheMaxSize), queueCapacity, overflowPolicy, coalesce);
+            this.scheduler = Schedulers.fromExecutorService(Executors.newSingleThreadScheduledExecutor(r -> this.thread = new Thread(r, name)));
+        }
+
+        @Override
+        Scheduler scheduler() {
+            return scheduler;
+        }
 
         @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, name);
+        boolean isShardThread() {
+            return Thread.currentThread() == thread;
         }
     }
 }
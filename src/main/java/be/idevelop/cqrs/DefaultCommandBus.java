@@ -1,76 +1,220 @@
 package be.idevelop.cqrs;
 
-import io.micronaut.context.ApplicationContext;
-import io.micronaut.context.Qualifier;
-import io.micronaut.core.order.OrderUtil;
-import io.micronaut.inject.qualifiers.Qualifiers;
+import io.micronaut.context.annotation.Value;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Singleton
 final class DefaultCommandBus implements CommandBus {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DefaultCommandBus.class);
 
-    private final ApplicationContext applicationContext;
+    private final CommandHandlerRegistry commandHandlerRegistry;
 
     private final CqrsScheduler cqrsScheduler;
 
     private final ObjectRepository objectRepository;
 
+    private final CqrsMetrics metrics;
+
     private final Scheduler continuationScheduler = Schedulers.boundedElastic();
 
+    private final Retry conflictRetry;
+
+    private final int bulkConcurrency;
+
     @Inject
-    DefaultCommandBus(ApplicationContext applicationContext, CqrsScheduler cqrsScheduler, ObjectRepository objectRepository) {
-        this.applicationContext = applicationContext;
+    DefaultCommandBus(CommandHandlerRegistry commandHandlerRegistry,
+                      CqrsScheduler cqrsScheduler,
+                      ObjectRepository objectRepository,
+                      EventRepository eventRepository,
+                      CqrsMetrics metrics,
+                      @Value("${cqrs.retry.maxAttempts:3}") int maxAttempts,
+                      @Value("${cqrs.retry.minBackoff:10ms}") Duration minBackoff,
+                      @Value("${cqrs.retry.maxBackoff:1s}") Duration maxBackoff,
+                      @Value("${cqrs.bulk.concurrency:256}") int bulkConcurrency) {
+        this.commandHandlerRegistry = commandHandlerRegistry;
         this.cqrsScheduler = cqrsScheduler;
         this.objectRepository = objectRepository;
+        this.metrics = metrics;
+        this.conflictRetry = Retry.backoff(maxAttempts, minBackoff)
+                .maxBackoff(maxBackoff)
+                .jitter(0.5d)
+                .filter(ConcurrencyConflictException.class::isInstance)
+                .doBeforeRetry(retrySignal -> LOGGER.debug("Retrying command after concurrency conflict, attempt {}", retrySignal.totalRetries() + 1, retrySignal.failure()))
+                .onRetryExhaustedThrow((retrySpec, retrySignal) -> retrySignal.failure());
+        this.bulkConcurrency = bulkConcurrency;
+        if (maxAttempts > 0 && !eventRepository.checksExpectedVersion()) {
+            LOGGER.warn("Event repository {} does not check the expected version of saved events, concurrency conflicts are not detected and commands are never retried", eventRepository.getClass().getName());
+        }
     }
 
     @Override
     public <I extends Id<A, I>, A extends AggregateRoot<A, I>> void publish(Command<I> command) {
-        process(command).ignoreElement().subscribe();
+        enqueue(new QueuedCommand<>(command, null));
     }
 
     @Override
     public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<I> publishAndWait(Command<I> command) {
-        return process(command);
+        return Mono.create(sink -> {
+            try {
+                enqueue(new QueuedCommand<>(command, sink));
+            } catch (CommandRejectedException e) {
+                sink.error(e);
+            }
+        });
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<I> publishEach(Publisher<? extends Command<I>> commands) {
+        return Flux.from(commands).concatMap(command -> publishAndWait(command), 1);
+    }
+
+    /**
+     * The commands are grouped per aggregate root and each group publishes its commands one after the other, so a
+     * command waiting for the previous command of its aggregate root doesn't hold up the other groups. The commands
+     * in flight over all groups are bounded by the bulk concurrency. A group lives until the published commands
+     * complete, which suits the finite bulk input this is meant for.
+     */
+    @Override
+    public Flux<CommandResult> publishAll(Publisher<? extends Command<?>> commands) {
+        return Flux.defer(() -> {
+            var permits = new Permits(bulkConcurrency);
+            return Flux.<Command<?>>from(commands)
+                    .<Id<?, ?>>groupBy(Command::objectId)
+                    .flatMap(group -> group.concatMap(command -> permits.withPermit(publishAndWaitForResult(command))), Integer.MAX_VALUE);
+        });
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Mono<CommandResult> publishAndWaitForResult(Command<?> command) {
+        return ((Mono<?>) publishAndWait((Command) command))
+                .thenReturn(new CommandResult(command, null))
+                .onErrorResume(e -> Mono.just(new CommandResult(command, e)));
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> void enqueue(QueuedCommand<I, A> queuedCommand) {
+        cqrsScheduler.shard(queuedCommand.command.objectId()).commandQueue().offer(queuedCommand);
     }
 
     private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<I> process(Command<I> command) {
         Class<A> aggregateRootClass = command.objectId().getEntityClass();
+        var shard = cqrsScheduler.shard(command.objectId());
+
+        Mono<I> attempt = retrieve(shard, command.objectId(), aggregateRootClass)
+                .flatMap(aggregateRoot -> handle(aggregateRoot, command))
+                .flatMap(objectRepository::save)
+                .flatMap(shard::putInCache)
+                .map(aggregateRoot -> aggregateRoot.id);
+
+        // the first attempt starts on the shard while draining its command queue, a retry resubscribes through the
+        // shard, reloading the aggregate root and handling the command again
+        var processing = Mono.defer(() -> shard.isShardThread() ? attempt : attempt.subscribeOn(shard.scheduler()))
+                .retryWhen(conflictRetry);
+        return metrics.time(CqrsMetrics.Stage.COMMAND, processing, aggregateRootClass, command.getClass());
+    }
+
+    /**
+     * Handle commands that were queued for the same aggregate root in a single unit of work, loading and saving the
+     * aggregate root once and timing it as a single command. When a command fails before anything is saved, the
+     * commands are processed one by one instead, so only the failing command fails.
+     */
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Void> processCoalesced(List<QueuedCommand<I, A>> queuedCommands) {
+        I objectId = queuedCommands.get(0).command.objectId();
+        Class<A> aggregateRootClass = objectId.getEntityClass();
+        var shard = cqrsScheduler.shard(objectId);
+        var saving = new AtomicBoolean();
 
-        return objectRepository.retrieve(command.objectId(), aggregateRootClass)
-                .flatMap(aggregateRoot ->
-                        getCqrsCommandHandlers(command)
-                                .sort(OrderUtil.COMPARATOR)
-                                .flatMap(handler -> {
-                                    //noinspection unchecked
-                                    Object o = handler.onCommand(aggregateRoot, command);
-                                    //noinspection unchecked
-                                    return o instanceof Publisher<?> ? (Publisher<Object>) o : Mono.just(o);
-                                })
-                                .map(x -> {
-                                    if (x instanceof Publisher<?>) {
-                                        //noinspection ReactiveStreamsUnusedPublisher
-                                        return flatten((Publisher<?>) x);
-                                    } else {
-                                        return x;
-                                    }
-                                })
-                                .reduce(aggregateRoot, (a, x) -> a)
-                )
+        Mono<Optional<I>> unitOfWork = retrieve(shard, objectId, aggregateRootClass)
+                .flatMap(aggregateRoot -> Flux.fromIterable(queuedCommands)
+                        .concatMap(queuedCommand -> handle(aggregateRoot, queuedCommand.command))
+                        .then(Mono.just(aggregateRoot)))
+                .doOnNext(aggregateRoot -> saving.set(true))
                 .flatMap(objectRepository::save)
-                .map(aggregateRoot -> aggregateRoot.id)
-                .subscribeOn(cqrsScheduler.schedule(command.objectId()))
-                .publishOn(continuationScheduler);
+                .flatMap(shard::putInCache)
+                .map(saved -> Optional.of(saved.id))
+                .defaultIfEmpty(Optional.empty());
+
+        return metrics.time(CqrsMetrics.Stage.COMMAND, unitOfWork, aggregateRootClass, commandClass(queuedCommands))
+                .doOnNext(saved -> queuedCommands.forEach(queuedCommand -> queuedCommand.success(saved.orElse(null))))
+                .then()
+                .onErrorResume(e -> {
+                    if (!saving.get() || e instanceof ConcurrencyConflictException) {
+                        // nothing was saved, every command gets its own retries
+                        LOGGER.debug("Failed processing {} coalesced commands for {}, processing them one by one", queuedCommands.size(), objectId, e);
+                        return processOneByOne(queuedCommands);
+                    }
+                    queuedCommands.forEach(queuedCommand -> queuedCommand.error(e));
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * @return the class of the coalesced commands to tag their timing with, or null when they differ
+     */
+    private static Class<?> commandClass(List<? extends QueuedCommand<?, ?>> queuedCommands) {
+        Class<?> commandClass = queuedCommands.get(0).command.getClass();
+        for (QueuedCommand<?, ?> queuedCommand : queuedCommands) {
+            if (queuedCommand.command.getClass() != commandClass) {
+                return null;
+            }
+        }
+        return commandClass;
+    }
+
+    /**
+     * Process the commands for the same aggregate root one after the other, each completing before the next starts.
+     */
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Void> processOneByOne(List<QueuedCommand<I, A>> queuedCommands) {
+        return Flux.fromIterable(queuedCommands)
+                .concatMap(QueuedCommand::processAlone)
+                .then();
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> handle(A aggregateRoot, Command<I> command) {
+        var handled = getCqrsCommandHandlers(command)
+                .flatMap(handler -> {
+                    //noinspection unchecked
+                    Object o = handler.onCommand(aggregateRoot, command);
+                    //noinspection unchecked
+                    return o instanceof Publisher<?> ? (Publisher<Object>) o : Mono.just(o);
+                })
+                .map(x -> {
+                    if (x instanceof Publisher<?>) {
+                        //noinspection ReactiveStreamsUnusedPublisher
+                        return flatten((Publisher<?>) x);
+                    } else {
+                        return x;
+                    }
+                })
+                .reduce(aggregateRoot, (a, x) -> a);
+        return metrics.time(CqrsMetrics.Stage.HANDLE, handled, aggregateRoot.getClass(), command.getClass());
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> retrieve(CqrsScheduler.Shard shard, I objectId, Class<A> aggregateRootClass) {
+        var retrieved = Mono.fromSupplier(() -> shard.cache().take(objectId, aggregateRootClass))
+                .switchIfEmpty(Mono.defer(() -> objectRepository.retrieve(objectId, aggregateRootClass)));
+        return metrics.time(CqrsMetrics.Stage.RETRIEVE, retrieved, aggregateRootClass, null);
     }
 
     private static Flux<Object> flatten(Publisher<?> source) {
@@ -94,11 +238,150 @@ final class DefaultCommandBus implements CommandBus {
 
     @SuppressWarnings("rawtypes")
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<CqrsCommandHandler> getCqrsCommandHandlers(Command<I> command) {
-        Qualifier<CqrsCommandHandler> qualifier = Qualifiers.byTypeArguments(command.objectId().getEntityClass(), command.getClass());
-        var beansOfType = applicationContext.getBeansOfType(CqrsCommandHandler.class, qualifier);
+        var handlers = commandHandlerRegistry.getCqrsCommandHandlers(command.objectId().getEntityClass(), command.getClass());
         if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Found command handler {} for command: {} - {}", beansOfType, command, beansOfType.size());
+            LOGGER.trace("Found command handler {} for command: {} - {}", Arrays.toString(handlers), command, handlers.length);
+        }
+        return Flux.fromArray(handlers);
+    }
+
+    /**
+     * Non-blocking permits, a command waiting for a permit is subscribed to once another command released one.
+     */
+    private static final class Permits {
+
+        private final Queue<MonoSink<Boolean>> waiting = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger available;
+
+        private Permits(int permits) {
+            this.available = new AtomicInteger(Math.max(permits, 1));
+        }
+
+        private <T> Mono<T> withPermit(Mono<T> mono) {
+            return Mono.usingWhen(acquire(), permit -> mono, permit -> Mono.fromRunnable(this::release));
+        }
+
+        private Mono<Boolean> acquire() {
+            return Mono.create(sink -> {
+                waiting.offer(sink);
+                grant();
+            });
+        }
+
+        private void release() {
+            available.incrementAndGet();
+            grant();
+        }
+
+        private void grant() {
+            while (!waiting.isEmpty()) {
+                var permits = available.get();
+                if (permits <= 0) {
+                    return;
+                }
+                if (!available.compareAndSet(permits, permits - 1)) {
+                    continue;
+                }
+                var sink = waiting.poll();
+                if (sink == null) {
+                    // another thread granted the last waiting command, hand the permit back and check again
+                    available.incrementAndGet();
+                } else {
+                    sink.success(Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    private final class QueuedCommand<I extends Id<A, I>, A extends AggregateRoot<A, I>> implements CommandQueue.Entry {
+
+        private final Command<I> command;
+
+        private final MonoSink<I> sink;
+
+        private volatile boolean cancelled;
+
+        private volatile Disposable processing;
+
+        private QueuedCommand(Command<I> command, MonoSink<I> sink) {
+            this.command = command;
+            this.sink = sink;
+            if (sink != null) {
+                sink.onCancel(() -> {
+                    cancelled = true;
+                    var disposable = processing;
+                    if (disposable != null) {
+                        disposable.dispose();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public Command<?> command() {
+            return command;
+        }
+
+        @Override
+        public void run(List<CommandQueue.Entry> coalesced, Runnable done) {
+            if (coalesced.isEmpty()) {
+                processing = processAlone()
+                        .doFinally(signalType -> done.run())
+                        .subscribe();
+                return;
+            }
+            List<QueuedCommand<I, A>> queuedCommands = new ArrayList<>(coalesced.size() + 1);
+            queuedCommands.add(this);
+            //noinspection unchecked
+            coalesced.forEach(entry -> queuedCommands.add((QueuedCommand<I, A>) entry));
+            queuedCommands.removeIf(queuedCommand -> queuedCommand.cancelled);
+            if (queuedCommands.isEmpty()) {
+                done.run();
+                return;
+            }
+            processCoalesced(queuedCommands)
+                    .doFinally(signalType -> done.run())
+                    .subscribe(null, e -> LOGGER.warn("Failed processing {} coalesced commands for {}", queuedCommands.size(), command.objectId(), e));
+        }
+
+        /**
+         * Process the command on its own, completing once it's handled and its events are saved. The outcome is
+         * reported to the publisher, so the returned mono never fails.
+         */
+        private Mono<Void> processAlone() {
+            return Mono.defer(() -> cancelled ? Mono.<I>empty() : process(command))
+                    .doOnSuccess(this::success)
+                    .doOnError(this::error)
+                    .onErrorResume(e -> Mono.empty())
+                    .then();
+        }
+
+        @Override
+        public void reject(CommandRejectedException e) {
+            if (sink == null) {
+                LOGGER.warn(e.getMessage());
+            } else {
+                sink.error(e);
+            }
+        }
+
+        /**
+         * The publisher continues on the continuation scheduler, so it runs neither on the shard nor on the thread that
+         * completed the save, and the aggregate root is released without waiting for it.
+         */
+        private void success(I objectId) {
+            if (sink != null) {
+                continuationScheduler.schedule(() -> sink.success(objectId));
+            }
+        }
+
+        private void error(Throwable e) {
+            if (sink == null) {
+                LOGGER.warn("Failed processing command {}", command, e);
+            } else {
+                continuationScheduler.schedule(() -> sink.error(e));
+            }
         }
-        return Flux.fromIterable(beansOfType);
     }
 }
@@ -20,28 +20,42 @@ final class DefaultEventBus implements EventBus {
 
     private final SagaRepository sagaRepository;
 
+    private final CqrsMetrics metrics;
+
+    private final AsyncEventBusDispatcher asyncDispatcher;
+
     @Inject
-    public DefaultEventBus(ApplicationContext applicationContext, SagaRepository sagaRepository) {
+    public DefaultEventBus(ApplicationContext applicationContext, SagaRepository sagaRepository, CqrsMetrics metrics, AsyncEventBusDispatcher asyncDispatcher) {
         this.applicationContext = applicationContext;
         this.sagaRepository = sagaRepository;
+        this.metrics = metrics;
+        this.asyncDispatcher = asyncDispatcher;
     }
 
     @Override
     public <I extends Id<A, I>, A extends AggregateRoot<A, I>, EM extends EventMessage<I, ? extends EVENT>, EVENT extends Record> Mono<Boolean> publish(List<EM> eventMessages) {
         return Flux.fromIterable(eventMessages)
-                .flatMap(this::handleEventOnListeners)
-                .flatMap(sagaRepository::handleEventOnSagas)
-                .reduce(true, (x, y) -> true)
+                .concatMap(this::handleEventOnListeners)
+                .then(Mono.defer(() -> sagaRepository.handleEventsOnSagas(eventMessages)))
+                .thenReturn(true)
                 .onErrorReturn(false);
     }
 
     @SuppressWarnings("unchecked")
     private <I extends Id<A, I>, A extends AggregateRoot<A, I>, EM extends EventMessage<I, ? extends Record>> Mono<EM> handleEventOnListeners(EM eventMessage) {
-        return getCqrsEventBusHandlers(eventMessage)
+        if (asyncDispatcher.isEnabled()) {
+            // the handlers run on their own lanes, the command doesn't wait for them
+            return getCqrsEventBusHandlers(eventMessage)
+                    .sort(OrderUtil.COMPARATOR)
+                    .doOnNext(handler -> asyncDispatcher.dispatch(handler, eventMessage.event(), eventMessage.eventMeta()))
+                    .then(Mono.just(eventMessage));
+        }
+        var handled = getCqrsEventBusHandlers(eventMessage)
                 .sort(OrderUtil.COMPARATOR)
                 .doOnNext(handler -> handler.onEvent(eventMessage.event(), eventMessage.eventMeta()))
                 .doOnError(throwable -> LOGGER.warn("Failed handling event"))
                 .reduce(eventMessage, (em, handler) -> em);
+        return metrics.time(CqrsMetrics.Stage.EVENT_HANDLERS, handled, eventMessage.objectId().getEntityClass(), eventMessage.event().getClass());
     }
 
     @SuppressWarnings("rawtypes")
@@ -0,0 +1,26 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.annotation.Context;
+import jakarta.inject.Inject;
+
+/**
+ * Caches the sorted event handlers per (aggregate root, event) pair, so applying or replaying an event on an aggregate
+ * root is a lookup without allocations followed by a plain loop over the handlers.
+ */
+@Context
+@SuppressWarnings("rawtypes")
+final class EventHandlerRegistry {
+
+    private final HandlerTable<CqrsEventHandler> handlers;
+
+    @Inject
+    EventHandlerRegistry(ApplicationContext applicationContext) {
+        this.handlers = new HandlerTable<>(applicationContext, CqrsEventHandler.class, Record.class, new CqrsEventHandler[0]);
+        this.handlers.preload();
+    }
+
+    CqrsEventHandler[] getCqrsEventHandlers(Class<?> aggregateRootClass, Class<?> eventClass) {
+        return this.handlers.get(aggregateRootClass, eventClass);
+    }
+}
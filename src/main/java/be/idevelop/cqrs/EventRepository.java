@@ -2,12 +2,80 @@ package be.idevelop.cqrs;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
 
 import java.util.List;
 
 public interface EventRepository {
 
+    /**
+     * Expected version that skips the optimistic concurrency check.
+     */
+    long ANY_VERSION = Long.MIN_VALUE;
+
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz);
 
+    /**
+     * Retrieve only the events with a version higher than the given version, e.g. the events following a snapshot.
+     * Implementations should override this with a ranged read, the default filters the full event stream.
+     */
+    default <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz, long afterVersion) {
+        return retrieveEventMessages(objectId, clazz)
+                .filter(eventMessage -> eventMessage.eventMeta().version() > afterVersion);
+    }
+
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz);
+
+    /**
+     * Save the events only when the last saved version of the aggregate root equals the expected version, -1 for an
+     * aggregate root without events, and fail with a {@link ConcurrencyConflictException} otherwise. Stores that are
+     * shared between several instances must override this, the default skips the check.
+     */
+    default <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz, long expectedVersion) {
+        return saveEventMessages(eventMessages, clazz);
+    }
+
+    /**
+     * Whether this store checks the expected version when saving events. Stores that override
+     * {@link #saveEventMessages(List, Class, long)} with the check should return true, the command bus warns at startup
+     * when its conflict retries rely on a store that doesn't.
+     */
+    default boolean checksExpectedVersion() {
+        return false;
+    }
+
+    /**
+     * Save the events of several aggregate roots at once, so a durable store can share a single write and fsync between
+     * them. The result holds the outcome of every save as a value or error signal, in the order of the given batch, so
+     * a conflict or failure of one save doesn't affect the others. The default saves them one by one.
+     */
+    default Mono<List<Signal<Boolean>>> saveEventMessageBatch(List<AggregateEventMessages<?, ?>> batch) {
+        return Flux.fromIterable(batch)
+                .concatMap(aggregateEventMessages -> aggregateEventMessages.saveTo(this)
+                        .defaultIfEmpty(false)
+                        .materialize())
+                .collectList();
+    }
+
+    /**
+     * Retrieve the events of all aggregate roots in the order they were saved, starting at the given position of the
+     * global log, 0 being its start, and returning at most {@code maxCount} events. Readers continue at the next
+     * position of the last event they processed. Only durable events are returned. Stores that don't keep a global log
+     * don't support this, which rules out the outbox and catch-up subscriptions.
+     */
+    default Flux<GlobalEventMessage> retrieveAllEventMessages(long fromPosition, int maxCount) {
+        return Flux.error(new UnsupportedOperationException(getClass().getName() + " does not support reading the global event log"));
+    }
+
+    /**
+     * The position following the last durable event of the global log, where a reader starts that skips the events
+     * saved so far. Stores with a global log should override this, the default reads the whole log.
+     */
+    default Mono<Long> retrieveGlobalLogEnd() {
+        return Mono.just(0L)
+                .expand(position -> retrieveAllEventMessages(position, 1024)
+                        .takeLast(1)
+                        .map(GlobalEventMessage::nextPosition))
+                .last();
+    }
 }
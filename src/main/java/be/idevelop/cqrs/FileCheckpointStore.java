@@ -0,0 +1,59 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Secondary;
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Default {@link CheckpointStore}, keeping every checkpoint in its own file. A checkpoint is written to a temporary
+ * file first and moved in place, so a crash leaves either the previous or the new checkpoint.
+ */
+@Singleton
+@Secondary
+final class FileCheckpointStore implements CheckpointStore {
+
+    private final Path directory;
+
+    @Inject
+    FileCheckpointStore(@Value("${cqrs.checkpoints.directory:checkpoints}") String directory) {
+        this.directory = Path.of(directory);
+    }
+
+    @Override
+    public Mono<Long> loadCheckpoint(String name) {
+        return Mono.fromCallable(() -> {
+            var path = path(name);
+            if (!Files.exists(path)) {
+                return null;
+            }
+            return ByteBuffer.wrap(Files.readAllBytes(path)).getLong();
+        });
+    }
+
+    @Override
+    public Mono<Void> saveCheckpoint(String name, long position) {
+        return Mono.fromCallable(() -> {
+            write(name, position);
+            return true;
+        }).then();
+    }
+
+    private void write(String name, long position) throws IOException {
+        Files.createDirectories(directory);
+        var temporary = directory.resolve(name + ".checkpoint.tmp");
+        Files.write(temporary, ByteBuffer.allocate(Long.BYTES).putLong(position).array());
+        Files.move(temporary, path(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path path(String name) {
+        return directory.resolve(name + ".checkpoint");
+    }
+}
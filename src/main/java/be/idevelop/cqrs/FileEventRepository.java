@@ -0,0 +1,624 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.core.beans.BeanIntrospection;
+import io.micronaut.core.beans.BeanIntrospector;
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.core.reflect.GenericTypeUtils;
+import io.micronaut.core.type.Argument;
+import io.micronaut.core.util.StringUtils;
+import io.micronaut.json.JsonMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Embedded, single node {@link EventRepository} that appends events to segmented log files.
+ * <p>
+ * Every entry is written as {@code [int length][int crc32c][payload]}, where the payload holds the stream key, version,
+ * timestamp, event class name and the serialized event. Segments are rolled once they exceed
+ * {@code cqrs.eventStore.file.segmentSize} bytes and are named after the global position of their first entry. The
+ * position of every event is kept in an in memory index per aggregate root, which is rebuilt by scanning the log on
+ * startup. A torn write at the tail of the last segment is truncated during that scan.
+ */
+@Singleton
+@Requires(property = "cqrs.eventStore.file.enabled", value = StringUtils.TRUE)
+public class FileEventRepository implements EventRepository, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileEventRepository.class);
+
+    private static final String SEGMENT_PREFIX = "events-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final JsonMapper jsonMapper;
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentMap<String, StreamIndex> streams = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Argument<? extends Record>> eventArguments = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Function<String, Id<?, ?>>> idFactories = new ConcurrentHashMap<>();
+
+    private final Object writeLock = new Object();
+
+    private final Object syncLock = new Object();
+
+    private final ScheduledExecutorService periodicSync;
+
+    private volatile long writtenPosition;
+
+    private volatile long syncedPosition;
+
+    @Inject
+    public FileEventRepository(JsonMapper jsonMapper,
+                               @Value("${cqrs.eventStore.file.directory:events}") String directory,
+                               @Value("${cqrs.eventStore.file.segmentSize:67108864}") long segmentSize,
+                               @Value("${cqrs.eventStore.file.fsync:GROUPED}") FsyncPolicy fsyncPolicy,
+                               @Value("${cqrs.eventStore.file.fsyncInterval:100ms}") Duration fsyncInterval) {
+        this.jsonMapper = jsonMapper;
+        this.directory = Path.of(directory);
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+
+        try {
+            Files.createDirectories(this.directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open event log in " + this.directory.toAbsolutePath(), e);
+        }
+        this.syncedPosition = this.writtenPosition;
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            this.periodicSync = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "cqrs-event-store-sync"));
+            this.periodicSync.scheduleWithFixedDelay(this::syncQuietly, fsyncInterval.toMillis(), fsyncInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.periodicSync = null;
+        }
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
+        return retrieveEventMessages(objectId, clazz, -1);
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz, long afterVersion) {
+        return Flux.defer(() -> {
+            var streamIndex = streams.get(streamKey(objectId, clazz));
+            if (streamIndex == null) {
+                return Flux.empty();
+            }
+            return Flux.fromArray(streamIndex.positionsAfter(afterVersion))
+                    .map(position -> toEventMessage(objectId, readEntry(position)));
+        });
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz) {
+        return saveEventMessages(eventMessages, clazz, ANY_VERSION);
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz, long expectedVersion) {
+        if (eventMessages.isEmpty()) {
+            return Mono.just(true);
+        }
+        return Mono.fromCallable(() -> {
+            var failure = append(List.of(encode(new AggregateEventMessages<>(eventMessages, clazz, expectedVersion))))[0];
+            if (failure != null) {
+                throw failure;
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public boolean checksExpectedVersion() {
+        return true;
+    }
+
+    /**
+     * Appends all events of the batch with a single write, followed by a single fsync when the policy requires it.
+     */
+    @Override
+    public Mono<List<Signal<Boolean>>> saveEventMessageBatch(List<AggregateEventMessages<?, ?>> batch) {
+        return Mono.fromCallable(() -> {
+            var appends = new ArrayList<Append>(batch.size());
+            var rejections = new Exception[batch.size()];
+            for (var i = 0; i < batch.size(); i++) {
+                try {
+                    appends.add(encode(batch.get(i)));
+                } catch (IOException | IllegalArgumentException e) {
+                    // the events of this aggregate root can't be written, the others in the batch still are
+                    rejections[i] = e;
+                    appends.add(new Append(null, null, ANY_VERSION, List.of()));
+                }
+            }
+            var failures = append(appends);
+            var results = new ArrayList<Signal<Boolean>>(failures.length);
+            for (var i = 0; i < failures.length; i++) {
+                var failure = rejections[i] != null ? rejections[i] : failures[i];
+                results.add(failure == null ? Signal.next(true) : Signal.error(failure));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Reads the log sequentially from the given position, up to the last position forced to disk, or written with the
+     * periodic fsync policy. The object ids are rebuilt from the stream keys, see {@link #idFactory(String)}.
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Flux<GlobalEventMessage> retrieveAllEventMessages(long fromPosition, int maxCount) {
+        return Flux.defer(() -> {
+            var limit = fsyncPolicy == FsyncPolicy.PERIODIC ? writtenPosition : syncedPosition;
+            var eventMessages = new ArrayList<GlobalEventMessage>(Math.min(maxCount, 1024));
+            var position = fromPosition;
+            try {
+                while (position < limit && eventMessages.size() < maxCount) {
+                    var segment = segments.floorEntry(position).getValue();
+                    var offset = position - segment.baseOffset;
+                    if (offset >= segment.size) {
+                        var next = segments.higherKey(segment.baseOffset);
+                        if (next == null) {
+                            break;
+                        }
+                        position = next;
+                        continue;
+                    }
+                    var length = segment.read(offset, HEADER_SIZE).getInt();
+                    var entry = Entry.decode(segment.read(offset + HEADER_SIZE, length));
+                    var nextPosition = position + HEADER_SIZE + length;
+                    eventMessages.add(new GlobalEventMessage(position, nextPosition, toEventMessage((Id) objectId(entry.streamKey()), entry)));
+                    position = nextPosition;
+                }
+            } catch (IOException e) {
+                return Flux.error(new UncheckedIOException("Could not read event log at position " + position, e));
+            }
+            return Flux.fromIterable(eventMessages);
+        });
+    }
+
+    @Override
+    public Mono<Long> retrieveGlobalLogEnd() {
+        return Mono.fromSupplier(() -> fsyncPolicy == FsyncPolicy.PERIODIC ? writtenPosition : syncedPosition);
+    }
+
+    /**
+     * Appends the events of every given append that passes its expected version check with a single write.
+     *
+     * @return the conflict of every append that failed its expected version check, or null for the appends written.
+     */
+    private ConcurrencyConflictException[] append(List<Append> appends) throws IOException {
+        var conflicts = new ConcurrencyConflictException[appends.size()];
+        var written = new ArrayList<Entry>();
+        var positions = new ArrayList<Long>();
+        long end;
+        synchronized (writeLock) {
+            var previousVersions = new HashMap<StreamIndex, Long>();
+            var buffers = new ArrayList<ByteBuffer>();
+            var batchSize = 0;
+            for (var i = 0; i < appends.size(); i++) {
+                var append = appends.get(i);
+                if (append.entries().isEmpty()) {
+                    continue;
+                }
+                var streamIndex = streams.computeIfAbsent(append.streamKey(), key -> new StreamIndex());
+                if (append.expectedVersion() != ANY_VERSION && streamIndex.lastVersion != append.expectedVersion()) {
+                    conflicts[i] = new ConcurrencyConflictException(append.objectId(), append.expectedVersion(), streamIndex.lastVersion);
+                    continue;
+                }
+                for (var entry : append.entries()) {
+                    var buffer = entry.toBuffer();
+                    buffers.add(buffer);
+                    written.add(entry);
+                    batchSize += buffer.remaining();
+                }
+                previousVersions.putIfAbsent(streamIndex, streamIndex.lastVersion);
+                streamIndex.lastVersion = append.entries().get(append.entries().size() - 1).version();
+            }
+            if (buffers.isEmpty()) {
+                return conflicts;
+            }
+
+            Segment segment;
+            try {
+                segment = segmentFor(batchSize);
+                var offset = segment.size;
+                for (var buffer : buffers) {
+                    positions.add(segment.baseOffset + offset);
+                    offset += buffer.remaining();
+                }
+                segment.write(buffers.toArray(new ByteBuffer[0]), batchSize);
+            } catch (IOException e) {
+                previousVersions.forEach((streamIndex, version) -> streamIndex.lastVersion = version);
+                throw e;
+            }
+            end = segment.baseOffset + segment.size;
+            this.writtenPosition = end;
+            if (fsyncPolicy == FsyncPolicy.PER_WRITE) {
+                segment.channel.force(false);
+                this.syncedPosition = end;
+            }
+        }
+
+        if (fsyncPolicy == FsyncPolicy.GROUPED) {
+            syncUpTo(end);
+        }
+        for (var i = 0; i < written.size(); i++) {
+            var entry = written.get(i);
+            streams.get(entry.streamKey()).add(entry.version(), positions.get(i));
+        }
+        return conflicts;
+    }
+
+    private Segment segmentFor(int batchSize) throws IOException {
+        var active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null) {
+            return openSegment(0);
+        }
+        if (active.size > 0 && active.size + batchSize > segmentSize) {
+            active.channel.force(false);
+            return openSegment(active.baseOffset + active.size);
+        }
+        return active;
+    }
+
+    private Segment openSegment(long baseOffset) throws IOException {
+        var path = directory.resolve(SEGMENT_PREFIX + String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+        var segment = new Segment(baseOffset, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * Force everything written up to the given position to disk. Appends that wait for a running fsync are covered by
+     * the next one, so under load a single fsync acknowledges many appends.
+     */
+    private void syncUpTo(long position) throws IOException {
+        if (syncedPosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            var target = writtenPosition;
+            segments.lastEntry().getValue().channel.force(false);
+            syncedPosition = Math.max(syncedPosition, target);
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            syncUpTo(writtenPosition);
+        } catch (IOException e) {
+            LOGGER.error("Could not force event log to disk", e);
+        }
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Append encode(AggregateEventMessages<I, A> aggregateEventMessages) throws IOException {
+        var eventMessages = aggregateEventMessages.eventMessages();
+        var entries = new ArrayList<Entry>(eventMessages.size());
+        for (var eventMessage : eventMessages) {
+            var eventMeta = eventMessage.eventMeta();
+            entries.add(new Entry(
+                    streamKey(eventMeta.objectId(), aggregateEventMessages.clazz()),
+                    eventMeta.version(),
+                    eventMeta.timestamp(),
+                    eventMessage.event().getClass().getName(),
+                    jsonMapper.writeValueAsBytes(eventMessage.event())
+            ));
+        }
+        var objectId = eventMessages.isEmpty() ? null : eventMessages.get(0).objectId();
+        var streamKey = objectId == null ? null : streamKey(objectId, aggregateEventMessages.clazz());
+        return new Append(streamKey, objectId, aggregateEventMessages.expectedVersion(), entries);
+    }
+
+    private <I extends Id<?, I>> EventMessage<I, ? extends Record> toEventMessage(I objectId, Entry entry) {
+        try {
+            Record event = jsonMapper.readValue(entry.data(), eventArgument(entry.eventClassName()));
+            return new EventMessage<>(new EventMeta<>(objectId, entry.version(), entry.timestamp()), event);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not deserialize event " + entry.eventClassName() + " of " + entry.streamKey(), e);
+        }
+    }
+
+    private Id<?, ?> objectId(String streamKey) {
+        var separator = streamKey.indexOf('/');
+        return idFactories.computeIfAbsent(streamKey.substring(0, separator), this::idFactory).apply(streamKey.substring(separator + 1));
+    }
+
+    /**
+     * Object ids are stored by their {@link Id#asString()}, so they are rebuilt through the introspected single argument
+     * creator of the id type of the aggregate root, converting the stored string to the argument type.
+     */
+    @SuppressWarnings("unchecked")
+    private Function<String, Id<?, ?>> idFactory(String aggregateRootClassName) {
+        try {
+            var aggregateRootClass = Class.forName(aggregateRootClassName, false, FileEventRepository.class.getClassLoader());
+            var typeArguments = GenericTypeUtils.resolveSuperTypeGenericArguments(aggregateRootClass, AggregateRoot.class);
+            if (typeArguments.length != 2) {
+                throw new IllegalStateException("Could not resolve the id type of " + aggregateRootClassName);
+            }
+            Class<?> idClass = typeArguments[1];
+            var introspection = (BeanIntrospection<Id<?, ?>>) BeanIntrospector.SHARED.findIntrospection(idClass)
+                    .orElseThrow(() -> new IllegalStateException("No introspection found for id type " + idClass.getName() + ". Please verify it is annotated with @Introspected"));
+            var arguments = introspection.getConstructorArguments();
+            if (arguments.length != 1) {
+                throw new IllegalStateException("Id type " + idClass.getName() + " needs a single argument creator accepting its asString() value");
+            }
+            var argument = arguments[0];
+            return value -> introspection.instantiate(ConversionService.SHARED.convertRequired(value, argument.getType()));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unknown aggregate root class " + aggregateRootClassName, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Argument<? extends Record> eventArgument(String eventClassName) {
+        return eventArguments.computeIfAbsent(eventClassName, className -> {
+            try {
+                return Argument.of((Class<? extends Record>) Class.forName(className, false, FileEventRepository.class.getClassLoader()));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown event class " + className, e);
+            }
+        });
+    }
+
+    Entry readEntry(long position) {
+        var segmentEntry = segments.floorEntry(position);
+        if (segmentEntry == null) {
+            throw new IllegalStateException("No event log segment contains position " + position);
+        }
+        var segment = segmentEntry.getValue();
+        try {
+            var offset = position - segment.baseOffset;
+            var header = segment.read(offset, HEADER_SIZE);
+            var payload = segment.read(offset + HEADER_SIZE, header.getInt());
+            return Entry.decode(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read event at position " + position, e);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX) && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+        for (var i = 0; i < paths.size(); i++) {
+            var fileName = paths.get(i).getFileName().toString();
+            var baseOffset = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+            var segment = openSegment(baseOffset);
+            var validSize = scan(segment);
+            if (validSize < segment.size) {
+                if (i < paths.size() - 1) {
+                    throw new IllegalStateException("Event log segment " + paths.get(i) + " is corrupt at offset " + validSize);
+                }
+                LOGGER.warn("Truncating torn write at the end of event log segment {} from {} to {} bytes", paths.get(i), segment.size, validSize);
+                segment.channel.truncate(validSize);
+                segment.channel.force(true);
+                segment.size = validSize;
+            }
+            this.writtenPosition = segment.baseOffset + segment.size;
+        }
+    }
+
+    private long scan(Segment segment) throws IOException {
+        long offset = 0;
+        var crc = new CRC32C();
+        while (offset + HEADER_SIZE <= segment.size) {
+            var header = segment.read(offset, HEADER_SIZE);
+            var length = header.getInt();
+            var checksum = header.getInt();
+            if (length <= 0 || offset + HEADER_SIZE + length > segment.size) {
+                return offset;
+            }
+            var payload = segment.read(offset + HEADER_SIZE, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return offset;
+            }
+            var entry = Entry.decode(payload);
+            var streamIndex = streams.computeIfAbsent(entry.streamKey(), key -> new StreamIndex());
+            streamIndex.add(entry.version(), segment.baseOffset + offset);
+            streamIndex.lastVersion = Math.max(streamIndex.lastVersion, entry.version());
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private static String streamKey(Id<?, ?> objectId, Class<?> clazz) {
+        return clazz.getName() + '/' + objectId.asString();
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (periodicSync != null) {
+            periodicSync.shutdown();
+        }
+        synchronized (writeLock) {
+            for (Map.Entry<Long, Segment> segment : segments.entrySet()) {
+                try {
+                    segment.getValue().channel.force(true);
+                    segment.getValue().channel.close();
+                } catch (IOException e) {
+                    LOGGER.error("Could not close event log segment starting at position {}", segment.getKey(), e);
+                }
+            }
+        }
+    }
+
+    record Entry(String streamKey, long version, Instant timestamp, String eventClassName, byte[] data) {
+
+        /**
+         * The stream key and event class name are written with an unsigned 16 bit length.
+         */
+        private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+        Entry {
+            checkLength("stream key", streamKey);
+            checkLength("event class name", eventClassName);
+        }
+
+        private static void checkLength(String description, String value) {
+            // a char takes at most 3 bytes in UTF-8, so only long values need to be encoded to check them
+            if (value.length() > MAX_NAME_LENGTH / 3 && value.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("The " + description + " of an event is longer than " + MAX_NAME_LENGTH + " bytes: " + value.substring(0, 64) + "...");
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            var key = streamKey.getBytes(StandardCharsets.UTF_8);
+            var eventClass = eventClassName.getBytes(StandardCharsets.UTF_8);
+            var payloadSize = Short.BYTES + key.length + Long.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES + eventClass.length + data.length;
+            var buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+            buffer.putInt(payloadSize).putInt(0);
+            buffer.putShort((short) key.length).put(key)
+                    .putLong(version)
+                    .putLong(timestamp.getEpochSecond()).putInt(timestamp.getNano())
+                    .putShort((short) eventClass.length).put(eventClass)
+                    .put(data);
+            var crc = new CRC32C();
+            crc.update(buffer.array(), HEADER_SIZE, payloadSize);
+            buffer.putInt(Integer.BYTES, (int) crc.getValue());
+            return buffer.flip();
+        }
+
+        static Entry decode(ByteBuffer payload) {
+            var key = new byte[Short.toUnsignedInt(payload.getShort())];
+            payload.get(key);
+            var version = payload.getLong();
+            var timestamp = Instant.ofEpochSecond(payload.getLong(), payload.getInt());
+            var eventClass = new byte[Short.toUnsignedInt(payload.getShort())];
+            payload.get(eventClass);
+            var data = new byte[payload.remaining()];
+            payload.get(data);
+            return new Entry(new String(key, StandardCharsets.UTF_8), version, timestamp, new String(eventClass, StandardCharsets.UTF_8), data);
+        }
+    }
+
+    private record Append(String streamKey, Id<?, ?> objectId, long expectedVersion, List<Entry> entries) {
+
+    }
+
+    private static final class Segment {
+
+        private final long baseOffset;
+
+        private final FileChannel channel;
+
+        private volatile long size;
+
+        private Segment(long baseOffset, FileChannel channel) throws IOException {
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        private void write(ByteBuffer[] buffers, int batchSize) throws IOException {
+            var position = size;
+            for (var buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            size += batchSize;
+        }
+
+        private ByteBuffer read(long offset, int length) throws IOException {
+            var buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of event log segment at offset " + (offset + buffer.position()));
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Versions and global positions of the events of a single aggregate root, in append order.
+     */
+    private static final class StreamIndex {
+
+        /**
+         * Version of the last event appended to the log, guarded by the write lock. Events are only added to the index
+         * once they are forced to disk according to the fsync policy, so this can be ahead of the indexed versions.
+         */
+        private long lastVersion = -1;
+
+        private long[] versions = new long[8];
+
+        private long[] positions = new long[8];
+
+        private int count;
+
+        private synchronized void add(long version, long position) {
+            if (count == versions.length) {
+                versions = Arrays.copyOf(versions, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            versions[count] = version;
+            positions[count] = position;
+            count++;
+        }
+
+        private synchronized Long[] positionsAfter(long afterVersion) {
+            var index = Arrays.binarySearch(versions, 0, count, afterVersion + 1);
+            var from = index >= 0 ? index : -index - 1;
+            var result = new Long[count - from];
+            for (var i = from; i < count; i++) {
+                result[i - from] = positions[i];
+            }
+            return result;
+        }
+    }
+}
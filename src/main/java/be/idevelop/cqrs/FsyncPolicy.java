@@ -0,0 +1,17 @@
+package be.idevelop.cqrs;
+
+public enum FsyncPolicy {
+    /**
+     * Force every append to disk before acknowledging it.
+     */
+    PER_WRITE,
+    /**
+     * Force appends to disk before acknowledging them, sharing a single fsync between all appends that wait for it at
+     * the same time.
+     */
+    GROUPED,
+    /**
+     * Acknowledge appends once written and force them to disk in the background at a fixed interval.
+     */
+    PERIODIC
+}
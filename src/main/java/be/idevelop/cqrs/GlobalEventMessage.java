@@ -0,0 +1,9 @@
+package be.idevelop.cqrs;
+
+/**
+ * Event message read from the global log of all aggregate roots, with its position in that log and the position at which
+ * a reader continues after it.
+ */
+public record GlobalEventMessage(long position, long nextPosition, EventMessage<?, ? extends Record> eventMessage) {
+
+}
@@ -0,0 +1,167 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the event saves of all {@link CqrsScheduler} shards and hands them to the {@link EventRepository} as one batch,
+ * so a durable store needs a single write and fsync for many commands. A batch is flushed once it holds
+ * {@code cqrs.groupCommit.maxBatchSize} saves or when {@code cqrs.groupCommit.window} passed since its first save. With
+ * the default window of zero a batch holds whatever was queued while the previous batch was written, which adds no
+ * latency when idle and batches more as the load grows.
+ * <p>
+ * At most {@code cqrs.groupCommit.maxPending} saves wait for the flusher. A save beyond that waits for room when it is
+ * made on a thread that may block, like a shard thread, and fails on a non-blocking thread.
+ */
+@Singleton
+final class GroupCommitter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final EventRepository eventRepository;
+
+    private final boolean enabled;
+
+    private final int maxBatchSize;
+
+    private final long windowNanos;
+
+    private final BlockingQueue<PendingSave> pendingSaves;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    @Inject
+    GroupCommitter(EventRepository eventRepository,
+                   @Value("${cqrs.groupCommit.enabled:false}") boolean enabled,
+                   @Value("${cqrs.groupCommit.maxBatchSize:256}") int maxBatchSize,
+                   @Value("${cqrs.groupCommit.window:0ms}") Duration window,
+                   @Value("${cqrs.groupCommit.maxPending:4096}") int maxPending) {
+        this.eventRepository = eventRepository;
+        this.enabled = enabled;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = window.toNanos();
+        this.pendingSaves = new LinkedBlockingQueue<>(Math.max(maxPending, maxBatchSize));
+        if (enabled) {
+            this.flusher = new Thread(this::flushLoop, "cqrs-group-commit");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> save(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz, long expectedVersion) {
+        return Mono.create(sink -> {
+            if (!running) {
+                sink.error(new IllegalStateException("Group commit is stopped"));
+                return;
+            }
+            var pendingSave = new PendingSave(new AggregateEventMessages<>(eventMessages, clazz, expectedVersion), sink);
+            if (pendingSaves.offer(pendingSave)) {
+                return;
+            }
+            if (Schedulers.isInNonBlockingThread()) {
+                sink.error(new IllegalStateException("Too many event saves are waiting for the group commit"));
+                return;
+            }
+            try {
+                pendingSaves.put(pendingSave);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sink.error(e);
+            }
+        });
+    }
+
+    private void flushLoop() {
+        var batch = new ArrayList<PendingSave>(maxBatchSize);
+        while (running || !pendingSaves.isEmpty()) {
+            try {
+                var first = pendingSaves.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+        PendingSave pendingSave;
+        while ((pendingSave = pendingSaves.poll()) != null) {
+            pendingSave.sink().error(new IllegalStateException("Group commit is stopped"));
+        }
+    }
+
+    private void collect(List<PendingSave> batch) throws InterruptedException {
+        var deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+            pendingSaves.drainTo(batch, maxBatchSize - batch.size());
+            var remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                return;
+            }
+            var next = pendingSaves.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void flush(List<PendingSave> batch) {
+        try {
+            var results = eventRepository.saveEventMessageBatch(batch.stream().<AggregateEventMessages<?, ?>>map(PendingSave::aggregateEventMessages).toList()).block();
+            for (var i = 0; i < batch.size(); i++) {
+                var sink = batch.get(i).sink();
+                var result = results != null && i < results.size() ? results.get(i) : null;
+                if (result == null) {
+                    sink.success(false);
+                } else if (result.isOnError()) {
+                    sink.error(result.getThrowable());
+                } else {
+                    sink.success(Boolean.TRUE.equals(result.get()));
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not save batch of {} event message lists", batch.size(), e);
+            batch.forEach(pendingSave -> pendingSave.sink().error(e));
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        if (flusher != null) {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    private record PendingSave(AggregateEventMessages<?, ?> aggregateEventMessages, MonoSink<Boolean> sink) {
+
+    }
+}
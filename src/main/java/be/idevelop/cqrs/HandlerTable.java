@@ -0,0 +1,92 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.core.order.OrderUtil;
+import io.micronaut.core.type.Argument;
+import io.micronaut.inject.BeanDefinition;
+import io.micronaut.inject.qualifiers.Qualifiers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The sorted handler beans per (aggregate root, message) pair of the command and event handler registries. The handlers
+ * are kept in a map per aggregate root class found through a {@link ClassValue}, so looking them up for a dispatch
+ * allocates nothing. Pairs are resolved on first use and memoized, {@link #preload} resolves the pairs of the handler
+ * bean definitions up front.
+ */
+final class HandlerTable<H> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HandlerTable.class);
+
+    private final ApplicationContext applicationContext;
+
+    private final Class<H> handlerType;
+
+    private final Class<?> messageType;
+
+    private final H[] noHandlers;
+
+    private final ClassValue<ConcurrentMap<Class<?>, H[]>> handlers = new ClassValue<>() {
+        @Override
+        protected ConcurrentMap<Class<?>, H[]> computeValue(Class<?> aggregateRootClass) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    /**
+     * @param messageType the supertype of the messages, used to tell the message type argument of the handlers apart
+     * @param noHandlers  the empty array returned for a pair without handlers
+     */
+    HandlerTable(ApplicationContext applicationContext, Class<H> handlerType, Class<?> messageType, H[] noHandlers) {
+        this.applicationContext = applicationContext;
+        this.handlerType = handlerType;
+        this.messageType = messageType;
+        this.noHandlers = noHandlers;
+    }
+
+    H[] get(Class<?> aggregateRootClass, Class<?> messageClass) {
+        var byMessage = this.handlers.get(aggregateRootClass);
+        var found = byMessage.get(messageClass);
+        if (found == null) {
+            found = byMessage.computeIfAbsent(messageClass, ignored -> resolve(aggregateRootClass, messageClass));
+        }
+        return found;
+    }
+
+    /**
+     * Resolve the handlers of the (aggregate root, message) pairs the handler bean definitions are declared for.
+     */
+    void preload() {
+        for (BeanDefinition<H> beanDefinition : applicationContext.getBeanDefinitions(handlerType)) {
+            Class<?> aggregateRootClass = null;
+            Class<?> messageClass = null;
+            for (Argument<?> typeArgument : beanDefinition.getTypeArguments(handlerType)) {
+                if (AggregateRoot.class.isAssignableFrom(typeArgument.getType())) {
+                    aggregateRootClass = typeArgument.getType();
+                } else if (messageType.isAssignableFrom(typeArgument.getType())) {
+                    messageClass = typeArgument.getType();
+                }
+            }
+            if (aggregateRootClass != null && messageClass != null) {
+                get(aggregateRootClass, messageClass);
+            }
+        }
+    }
+
+    private H[] resolve(Class<?> aggregateRootClass, Class<?> messageClass) {
+        var beansOfType = applicationContext.getBeansOfType(handlerType, Qualifiers.byTypeArguments(aggregateRootClass, messageClass));
+        if (beansOfType.isEmpty()) {
+            return noHandlers;
+        }
+        var sorted = beansOfType.toArray(noHandlers);
+        Arrays.sort(sorted, OrderUtil.COMPARATOR);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Registered {} {}(s) for {} on {}", sorted.length, handlerType.getSimpleName(), messageClass.getName(), aggregateRootClass.getName());
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,210 @@
+package be.idevelop.cqrs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every active aggregate root its own serialized mailbox, so a slow command only delays the commands of its own
+ * aggregate root. Mailboxes are created on the first command for an aggregate root and reclaimed once they were idle
+ * for the configured timeout. They are drained on virtual threads when the runtime supports them, and on a cached
+ * thread pool otherwise. The command queues of all mailboxes share the configured queue capacity, so the queued
+ * commands are bounded regardless of the number of active aggregate roots.
+ */
+final class MailboxScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailboxScheduler.class);
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int CLOSED = 2;
+
+    /**
+     * Maximum number of tasks a mailbox runs before handing its thread back, so busy mailboxes can't starve others when
+     * drained on platform threads.
+     */
+    private static final int THROUGHPUT = 64;
+
+    private static final AggregateRootCache NO_CACHE = new AggregateRootCache(0);
+
+    private final ConcurrentMap<Id<?, ?>, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService reclaimer;
+
+    private final int cacheMaxSize;
+
+    private final CommandQueue.Capacity queueCapacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final boolean coalesce;
+
+    private final long idleTimeoutNanos;
+
+    MailboxScheduler(String prefix, int cacheMaxSize, int queueCapacity, OverflowPolicy overflowPolicy, boolean coalesce, Duration idleTimeout) {
+        this.cacheMaxSize = cacheMaxSize;
+        this.queueCapacity = new CommandQueue.Capacity(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.coalesce = coalesce;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.executor = createExecutor(prefix);
+        this.reclaimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, prefix + "-mailbox-reclaimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var period = Math.max(1, idleTimeout.toMillis() / 2);
+        this.reclaimer.scheduleWithFixedDelay(this::reclaimIdleMailboxes, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    <I extends Id<?, I>> Mailbox mailbox(I objectId) {
+        return mailboxes.computeIfAbsent(objectId, Mailbox::new);
+    }
+
+    int size() {
+        return mailboxes.size();
+    }
+
+    int queueDepth() {
+        return mailboxes.values().stream().mapToInt(mailbox -> mailbox.commandQueue().size()).sum();
+    }
+
+    int maxQueueDepth() {
+        return mailboxes.values().stream().mapToInt(mailbox -> mailbox.commandQueue().size()).max().orElse(0);
+    }
+
+    CacheStatistics cacheStatistics() {
+        return mailboxes.values().stream()
+                .map(mailbox -> mailbox.cache().statistics())
+                .reduce(new CacheStatistics(0, 0, 0, 0), CacheStatistics::plus);
+    }
+
+    void reclaimIdleMailboxes() {
+        var now = System.nanoTime();
+        mailboxes.forEach((objectId, mailbox) -> {
+            if (now - mailbox.lastActivity.get() >= idleTimeoutNanos && mailbox.commandQueue().isIdle() && mailbox.close()) {
+                mailboxes.remove(objectId, mailbox);
+            }
+        });
+    }
+
+    void shutdown() {
+        reclaimer.shutdownNow();
+        executor.shutdown();
+    }
+
+    private static ExecutorService createExecutor(String prefix) {
+        try {
+            var executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.info("Draining aggregate root mailboxes on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.info("Virtual threads are not available, draining aggregate root mailboxes on a cached thread pool");
+            var counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, prefix + "-mailbox-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    final class Mailbox extends CqrsScheduler.Shard implements Executor {
+
+        private final Id<?, ?> objectId;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        private final AtomicLong lastActivity = new AtomicLong(System.nanoTime());
+
+        private final Scheduler scheduler;
+
+        private volatile Thread drainingThread;
+
+        private Mailbox(Id<?, ?> objectId) {
+            super(new AggregateRootCache(cacheMaxSize > 0 ? 1 : 0), queueCapacity, overflowPolicy, coalesce);
+            this.objectId = objectId;
+            this.scheduler = Schedulers.fromExecutor(this);
+        }
+
+        @Override
+        Scheduler scheduler() {
+            return scheduler;
+        }
+
+        @Override
+        AggregateRootCache cache() {
+            // tasks forwarded from a reclaimed mailbox must not see its aggregate root, the new mailbox may hold a newer one
+            return state.get() == CLOSED ? NO_CACHE : super.cache();
+        }
+
+        @Override
+        boolean isShardThread() {
+            return Thread.currentThread() == drainingThread;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (state.compareAndSet(IDLE, SCHEDULED)) {
+                executor.execute(this::drain);
+            } else if (state.get() == CLOSED) {
+                // reclaimed while the task was submitted, hand everything over to the mailbox that replaces this one; the
+                // reclaimer may not have unmapped this mailbox yet, so it's replaced atomically instead of looked up
+                var replacement = mailboxes.compute(objectId, (key, mapped) -> mapped == null || mapped == this ? new Mailbox(key) : mapped);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    replacement.execute(task);
+                }
+            }
+        }
+
+        private void drain() {
+            drainingThread = Thread.currentThread();
+            try {
+                Runnable task;
+                var executed = 0;
+                while (executed++ < THROUGHPUT && (task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Failed running task in mailbox of {}", objectId, e);
+                    }
+                }
+            } finally {
+                drainingThread = null;
+                lastActivity.set(System.nanoTime());
+                state.set(IDLE);
+                if (!tasks.isEmpty()) {
+                    scheduleDrain();
+                }
+            }
+        }
+
+        private boolean close() {
+            return tasks.isEmpty() && state.compareAndSet(IDLE, CLOSED);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package be.idevelop.cqrs;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.context.annotation.Primary;
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the pipeline stages as Micrometer timers, tagged by aggregate root, command or event type and outcome, and
+ * exposes the depth of the command queues and the number of commands in flight as gauges. Classes are tagged by their
+ * fully qualified name, so types with the same simple name in different packages don't share a meter. Timers are
+ * looked up once per combination of tags and cached, so recording a stage doesn't go through the meter registry.
+ */
+@Singleton
+@Primary
+@Requires(classes = MeterRegistry.class)
+@Requires(beans = MeterRegistry.class)
+@Requires(property = "cqrs.metrics.enabled", notEquals = "false")
+final class MicrometerCqrsMetrics implements CqrsMetrics {
+
+    private final MeterRegistry meterRegistry;
+
+    private final ConcurrentMap<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlightCommands = new AtomicInteger();
+
+    @Inject
+    MicrometerCqrsMetrics(MeterRegistry meterRegistry, CqrsScheduler cqrsScheduler) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("cqrs.commands.inflight", inFlightCommands, AtomicInteger::get)
+                .description("Commands being processed")
+                .register(meterRegistry);
+        if (cqrsScheduler.isMailboxMode()) {
+            // a mailbox per aggregate root is too many to tag, the busiest one shows a lane falling behind
+            Gauge.builder("cqrs.scheduler.queue.depth", cqrsScheduler, scheduler -> scheduler.queueDepth(0))
+                    .description("Commands waiting for their mailbox, over all mailboxes")
+                    .tag("shard", "mailboxes")
+                    .register(meterRegistry);
+            Gauge.builder("cqrs.scheduler.queue.depth.max", cqrsScheduler, CqrsScheduler::maxMailboxQueueDepth)
+                    .description("Commands waiting in the busiest mailbox")
+                    .register(meterRegistry);
+            Gauge.builder("cqrs.scheduler.mailboxes", cqrsScheduler, CqrsScheduler::mailboxCount)
+                    .description("Active aggregate root mailboxes")
+                    .register(meterRegistry);
+        } else {
+            for (var i = 0; i < cqrsScheduler.queueCount(); i++) {
+                var queue = i;
+                Gauge.builder("cqrs.scheduler.queue.depth", cqrsScheduler, scheduler -> scheduler.queueDepth(queue))
+                        .description("Commands waiting for their shard")
+                        .tag("shard", String.valueOf(queue))
+                        .register(meterRegistry);
+            }
+        }
+    }
+
+    @Override
+    public <T> Mono<T> time(Stage stage, Mono<T> mono, Class<?> aggregateRootClass, Class<?> messageClass) {
+        return Mono.defer(() -> {
+            if (stage == Stage.COMMAND) {
+                inFlightCommands.incrementAndGet();
+            }
+            var start = System.nanoTime();
+            return mono.doFinally(signalType -> {
+                if (stage == Stage.COMMAND) {
+                    inFlightCommands.decrementAndGet();
+                }
+                timer(new TimerKey(stage, aggregateRootClass, messageClass, signalType)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            });
+        });
+    }
+
+    private Timer timer(TimerKey key) {
+        var timer = timers.get(key);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(key, this::registerTimer);
+        }
+        return timer;
+    }
+
+    private Timer registerTimer(TimerKey key) {
+        var builder = Timer.builder(key.stage().metricName)
+                .tag("aggregate", key.aggregateRootClass() == null ? "none" : key.aggregateRootClass().getName())
+                .tag("outcome", outcome(key.signalType()));
+        if (key.stage().messageTag != null) {
+            builder.tag(key.stage().messageTag, key.messageClass() == null ? "none" : key.messageClass().getName());
+        }
+        return builder.register(meterRegistry);
+    }
+
+    private static String outcome(SignalType signalType) {
+        return switch (signalType) {
+            case ON_COMPLETE -> "success";
+            case ON_ERROR -> "error";
+            case CANCEL -> "cancelled";
+            default -> signalType.name().toLowerCase();
+        };
+    }
+
+    private record TimerKey(Stage stage, Class<?> aggregateRootClass, Class<?> messageClass, SignalType signalType) {
+    }
+}
@@ -0,0 +1,15 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Secondary;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Mono;
+
+@Singleton
+@Secondary
+final class NoopCqrsMetrics implements CqrsMetrics {
+
+    @Override
+    public <T> Mono<T> time(Stage stage, Mono<T> mono, Class<?> aggregateRootClass, Class<?> messageClass) {
+        return mono;
+    }
+}
@@ -3,6 +3,9 @@ package be.idevelop.cqrs;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.util.List;
 
 @Singleton
 final class ObjectRepository {
@@ -16,19 +19,62 @@ final class ObjectRepository {
     @Inject
     private AggregateRootFactory aggregateRootFactory;
 
+    @Inject
+    private SnapshotRepository snapshotRepository;
+
+    @Inject
+    private GroupCommitter groupCommitter;
+
+    @Inject
+    private CqrsScheduler cqrsScheduler;
+
+    @Inject
+    private CqrsMetrics metrics;
+
+    @Inject
+    private OutboxRelay outboxRelay;
+
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> retrieve(I objectId, Class<A> clazz) {
-        return this.eventRepository.retrieveEventMessages(objectId, clazz)
-                .collect(() -> aggregateRootFactory.createNewAggregateRootInstance(objectId, clazz), AggregateRoot::replay)
+        return this.snapshotRepository.restore(objectId, clazz)
+                .flatMap(aggregateRoot -> this.eventRepository.retrieveEventMessages(objectId, clazz, aggregateRoot.version)
+                        .collect(() -> aggregateRoot, AggregateRoot::replay))
+                .switchIfEmpty(Mono.defer(() -> this.eventRepository.retrieveEventMessages(objectId, clazz)
+                        .collect(() -> aggregateRootFactory.createNewAggregateRootInstance(objectId, clazz), AggregateRoot::replay)))
                 .switchIfEmpty(Mono.fromSupplier(() -> aggregateRootFactory.createNewAggregateRootInstance(objectId, clazz)));
     }
 
-    @SuppressWarnings("unchecked")
     <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> save(A aggregateRoot) {
         var eventMessages = aggregateRoot.eventMessages();
-        return this.eventRepository.saveEventMessages(eventMessages, (Class<A>) aggregateRoot.getClass())
+        var clazz = aggregateRoot.getClass();
+        return this.metrics.time(CqrsMetrics.Stage.STORE, saveEventMessages(aggregateRoot, eventMessages), clazz, null)
                 .filter(success -> success)
-                .flatMap(success -> this.eventBus.publish(eventMessages))
+                .flatMap(success -> publish(aggregateRoot, eventMessages, clazz))
                 .filter(success -> success)
-                .map(success -> aggregateRoot.markSaved());
+                .map(success -> aggregateRoot.markSaved())
+                .flatMap(this.snapshotRepository::snapshotIfRequired);
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> publish(A aggregateRoot, List<EventMessage<I, ? extends Record>> eventMessages, Class<?> clazz) {
+        if (this.outboxRelay.isEnabled()) {
+            // the saved events are in the outbox, the relay publishes them
+            this.outboxRelay.eventsSaved();
+            return Mono.just(true);
+        }
+        // saga writes that complete on another thread continue on the shard of the aggregate root
+        var published = this.eventBus.publish(eventMessages)
+                .contextWrite(Context.of(CqrsScheduler.SHARD_CONTEXT_KEY, this.cqrsScheduler.schedule(aggregateRoot.getId())));
+        return this.metrics.time(CqrsMetrics.Stage.PUBLISH, published, clazz, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(A aggregateRoot, List<EventMessage<I, ? extends Record>> eventMessages) {
+        var clazz = (Class<A>) aggregateRoot.getClass();
+        var expectedVersion = aggregateRoot.expectedVersion();
+        if (!this.groupCommitter.isEnabled() || eventMessages.isEmpty()) {
+            return this.eventRepository.saveEventMessages(eventMessages, clazz, expectedVersion);
+        }
+        // the group commit completes on its own thread, continue on the shard of the aggregate root
+        return this.groupCommitter.save(eventMessages, clazz, expectedVersion)
+                .publishOn(this.cqrsScheduler.schedule(aggregateRoot.getId()));
     }
 }
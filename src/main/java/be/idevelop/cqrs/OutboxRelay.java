@@ -0,0 +1,245 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.BeanProvider;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes saved events through the {@link EventBus} in the background, instead of as part of saving them. The global
+ * event log is the outbox: an event is pending dispatch from the moment it is saved until the relay checkpointed a
+ * position beyond it, so events saved right before a crash are still published after a restart.
+ * <p>
+ * Events are read in batches from the checkpoint and published per aggregate root in version order, on the
+ * {@link CqrsScheduler} shard of the aggregate root, different aggregate roots concurrently. Only the events of the
+ * aggregate roots that failed are retried, but an event can still be published more than once, e.g. after a crash
+ * before its checkpoint was saved, so consumers deduplicate by the object id and version of its {@link EventMeta}. Once
+ * they failed the configured number of attempts, the events of the aggregate roots that still fail are dead-lettered:
+ * they are logged as an error and the relay moves on, so a single poison event doesn't stop the publication of all later
+ * events.
+ * <p>
+ * Without a checkpoint, the relay starts at the current end of the global log and saves that position right away: the
+ * events saved before the outbox was enabled were published as part of saving them, or not at all, and aren't published
+ * again. Saving a checkpoint of 0 before the first start publishes the whole log instead.
+ */
+@Context
+final class OutboxRelay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxRelay.class);
+
+    static final String CHECKPOINT = "outbox";
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    private final long pollIntervalMillis;
+
+    private final long retryBackoffMillis;
+
+    private final int maxAttempts;
+
+    private final BeanProvider<EventRepository> eventRepository;
+
+    private final BeanProvider<EventBus> eventBus;
+
+    private final BeanProvider<CqrsScheduler> cqrsScheduler;
+
+    private final BeanProvider<CheckpointStore> checkpointStore;
+
+    private final Semaphore appended = new Semaphore(0);
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private final Thread relay;
+
+    private volatile boolean running = true;
+
+    @Inject
+    OutboxRelay(BeanProvider<EventRepository> eventRepository,
+                BeanProvider<EventBus> eventBus,
+                BeanProvider<CqrsScheduler> cqrsScheduler,
+                BeanProvider<CheckpointStore> checkpointStore,
+                @Value("${cqrs.outbox.enabled:false}") boolean enabled,
+                @Value("${cqrs.outbox.batchSize:256}") int batchSize,
+                @Value("${cqrs.outbox.pollInterval:100ms}") Duration pollInterval,
+                @Value("${cqrs.outbox.retryBackoff:1s}") Duration retryBackoff,
+                @Value("${cqrs.outbox.maxAttempts:10}") int maxAttempts) {
+        this.eventRepository = eventRepository;
+        this.eventBus = eventBus;
+        this.cqrsScheduler = cqrsScheduler;
+        this.checkpointStore = checkpointStore;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.pollIntervalMillis = pollInterval.toMillis();
+        this.retryBackoffMillis = retryBackoff.toMillis();
+        this.maxAttempts = Math.max(1, maxAttempts);
+        if (enabled) {
+            this.relay = new Thread(this::relayLoop, "cqrs-outbox-relay");
+            this.relay.setDaemon(true);
+            this.relay.start();
+        } else {
+            this.relay = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Number of events that were dead-lettered after failing every attempt to publish them.
+     */
+    long deadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Wake the relay up after events were saved, rather than waiting for the poll interval.
+     */
+    void eventsSaved() {
+        if (appended.availablePermits() == 0) {
+            appended.release();
+        }
+    }
+
+    private void relayLoop() {
+        var position = -1L;
+        while (running) {
+            try {
+                if (position < 0) {
+                    position = loadCheckpoint();
+                }
+                var batch = eventRepository.get().retrieveAllEventMessages(position, batchSize).collectList().block();
+                if (batch == null || batch.isEmpty()) {
+                    appended.tryAcquire(pollIntervalMillis, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                var pending = perAggregateRoot(batch);
+                for (var attempt = 1; ; attempt++) {
+                    pending = publish(pending);
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    if (attempt >= maxAttempts) {
+                        deadLetter(pending);
+                        break;
+                    }
+                    LOGGER.warn("Failed publishing the events of {} aggregate roots from the outbox at position {}, attempt {} of {}", pending.size(), position, attempt, maxAttempts);
+                    if (!sleep(retryBackoffMillis)) {
+                        return;
+                    }
+                }
+                position = batch.get(batch.size() - 1).nextPosition();
+                checkpointStore.get().saveCheckpoint(CHECKPOINT, position).block();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (UnsupportedOperationException e) {
+                LOGGER.error("The outbox needs an event repository with a global event log, events are not published", e);
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed publishing events from the outbox at position {}, retrying", position, e);
+                if (!sleep(retryBackoffMillis)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The checkpoint of the relay, or the current end of the global log saved as its checkpoint when there is none.
+     */
+    private long loadCheckpoint() {
+        var checkpoint = checkpointStore.get().loadCheckpoint(CHECKPOINT).block();
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+        var end = eventRepository.get().retrieveGlobalLogEnd().blockOptional().orElse(0L);
+        checkpointStore.get().saveCheckpoint(CHECKPOINT, end).block();
+        LOGGER.info("No outbox checkpoint found, publishing the events saved from position {} of the global log on", end);
+        return end;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<List<EventMessage>> perAggregateRoot(List<GlobalEventMessage> batch) {
+        var perAggregateRoot = new LinkedHashMap<Id<?, ?>, List<EventMessage>>();
+        for (var globalEventMessage : batch) {
+            var eventMessage = globalEventMessage.eventMessage();
+            perAggregateRoot.computeIfAbsent(eventMessage.objectId(), objectId -> new ArrayList<>()).add(eventMessage);
+        }
+        return new ArrayList<>(perAggregateRoot.values());
+    }
+
+    /**
+     * Publish the events of every aggregate root on its shard, so they're handled like the events published by its
+     * commands.
+     *
+     * @return the events of the aggregate roots the event bus failed to publish, per aggregate root
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<List<EventMessage>> publish(List<List<EventMessage>> perAggregateRoot) {
+        var bus = eventBus.get();
+        var scheduler = cqrsScheduler.get();
+        var failed = Flux.fromIterable(perAggregateRoot)
+                .flatMap(eventMessages -> {
+                    var shard = scheduler.schedule((Id) eventMessages.get(0).objectId());
+                    return Mono.defer(() -> bus.publish((List) eventMessages))
+                            .subscribeOn(shard)
+                            .contextWrite(Context.of(CqrsScheduler.SHARD_CONTEXT_KEY, shard))
+                            .onErrorResume(e -> {
+                                LOGGER.debug("Failed publishing the events of {} from the outbox", eventMessages.get(0).objectId(), e);
+                                return Mono.just(false);
+                            })
+                            .defaultIfEmpty(false)
+                            .filter(success -> !Boolean.TRUE.equals(success))
+                            .map(success -> eventMessages);
+                })
+                .collectList()
+                .block();
+        return failed == null ? List.of() : failed;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void deadLetter(List<List<EventMessage>> failed) {
+        for (List<EventMessage> eventMessages : failed) {
+            var first = eventMessages.get(0);
+            var last = eventMessages.get(eventMessages.size() - 1);
+            LOGGER.error("Dead-lettering {} events of {} from version {} to {}, they failed {} attempts to publish them from the outbox",
+                    eventMessages.size(), first.objectId(), first.eventMeta().version(), last.eventMeta().version(), maxAttempts);
+            deadLettered.addAndGet(eventMessages.size());
+        }
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        if (relay != null) {
+            relay.interrupt();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package be.idevelop.cqrs;
+
+enum OverflowPolicy {
+    /**
+     * Block the publishing thread until the command queue has room again. A command published from a non-blocking
+     * thread, or from the shard itself, is rejected with a {@link CommandRejectedException} instead.
+     */
+    BLOCK,
+    /**
+     * Reject the published command with a {@link CommandRejectedException}.
+     */
+    REJECT,
+    /**
+     * Accept the published command and reject the oldest queued command with a {@link CommandRejectedException}.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,25 @@
+package be.idevelop.cqrs;
+
+import java.util.List;
+
+/**
+ * Read model fed by a catch-up subscription on the global event log. The {@link SubscriptionEngine} partitions the log
+ * by object id and hands every partition to the projection in batches, so the events of one aggregate root are always
+ * handled in order by one thread at a time, while partitions are handled in parallel. Events are delivered at least
+ * once, a projection deduplicates by the object id and version of their {@link EventMeta}.
+ */
+public interface Projection {
+
+    /**
+     * Unique name of the projection, under which its checkpoint is kept.
+     */
+    String name();
+
+    void handle(List<EventMessage<?, ? extends Record>> eventMessages);
+
+    /**
+     * Clear the read model before it is rebuilt from the start of the event log.
+     */
+    default void reset() {
+    }
+}
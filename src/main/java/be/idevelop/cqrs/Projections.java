@@ -0,0 +1,22 @@
+package be.idevelop.cqrs;
+
+import java.util.Optional;
+
+/**
+ * Manages the catch-up subscriptions of the {@link Projection}s on the global event log.
+ */
+public interface Projections {
+
+    /**
+     * Reset the named projection and feed it the event log from the start again.
+     *
+     * @throws IllegalArgumentException when there is no projection with the given name
+     */
+    void rebuild(String name);
+
+    /**
+     * @return the position in the global event log up to which the named projection handled the events, empty when
+     * there is no running projection with the given name
+     */
+    Optional<Long> position(String name);
+}
@@ -7,7 +7,7 @@ import org.slf4j.LoggerFactory;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static java.util.Collections.unmodifiableSet;
 
@@ -23,8 +23,13 @@ public abstract class Saga<THIS extends Saga<THIS>> implements Entity<THIS, Saga
     private SagaState currentState;
     private final Set<Id<?, ?>> linkedEntities;
     private final TimeoutStrategy timeoutStrategy;
-    private final Instant scheduledTimeout;
+    private Instant scheduledTimeout;
     final Queue<Command<? extends Id<?, ?>>> commandsToPublish;
+    private boolean persisted;
+    private boolean stateChanged;
+    private boolean timeoutChanged;
+    private final Set<Id<?, ?>> newlyLinkedEntities = new LinkedHashSet<>();
+    private byte[] persistedFieldData;
 
     public Saga(SagaId<THIS> sagaId, Instant created, SagaState... states) {
         this(sagaId, created, NO_TIMEOUT, states);
@@ -38,7 +43,7 @@ public abstract class Saga<THIS extends Saga<THIS>> implements Entity<THIS, Saga
         this.timeoutStrategy = timeoutStrategy;
         this.linkedEntities = new LinkedHashSet<>();
         this.scheduledTimeout = initTimeout();
-        this.commandsToPublish = new ArrayBlockingQueue<>(1);
+        this.commandsToPublish = new ConcurrentLinkedQueue<>();
     }
 
     private Instant initTimeout() {
@@ -52,7 +57,10 @@ public abstract class Saga<THIS extends Saga<THIS>> implements Entity<THIS, Saga
 
     final void updateTimeout() {
         switch (timeoutStrategy.timeoutType()) {
-            case SINCE_LAST_EVENT -> Instant.now().plus(timeoutStrategy.value(), timeoutStrategy.unit());
+            case SINCE_LAST_EVENT -> {
+                this.scheduledTimeout = Instant.now().plus(timeoutStrategy.value(), timeoutStrategy.unit());
+                this.timeoutChanged = true;
+            }
             case SINCE_START, NO_TIMEOUT -> {
             }
             default ->
@@ -85,12 +93,17 @@ public abstract class Saga<THIS extends Saga<THIS>> implements Entity<THIS, Saga
         return this.scheduledTimeout;
     }
 
+    final void restoreScheduledTimeout(Instant scheduledTimeout) {
+        this.scheduledTimeout = scheduledTimeout;
+    }
+
     final SagaState getCurrentState() {
         return this.currentState;
     }
 
     final void setCurrentState(SagaState currentState) {
         if (isValidState(currentState)) {
+            this.stateChanged |= !currentState.name().equals(this.currentState.name());
             this.currentState = currentState;
         }
     }
@@ -114,7 +127,43 @@ public abstract class Saga<THIS extends Saga<THIS>> implements Entity<THIS, Saga
     }
 
     final <I extends Id<?, I>> void linkEntity(I objectId) {
-        this.linkedEntities.add(objectId);
+        if (this.linkedEntities.add(objectId)) {
+            this.newlyLinkedEntities.add(objectId);
+        }
+    }
+
+    /**
+     * Whether the saga is stored, so a store can write only what changed since, as tracked by the dirty state below.
+     */
+    final boolean isPersisted() {
+        return persisted;
+    }
+
+    final boolean isStateChanged() {
+        return stateChanged;
+    }
+
+    final boolean isTimeoutChanged() {
+        return timeoutChanged;
+    }
+
+    final Set<Id> getNewlyLinkedEntities() {
+        return unmodifiableSet(newlyLinkedEntities);
+    }
+
+    final byte[] getPersistedFieldData() {
+        return persistedFieldData;
+    }
+
+    /**
+     * Mark the saga as stored with the given encoded field data, clearing its dirty state.
+     */
+    final void markPersisted(byte[] fieldData) {
+        this.persisted = true;
+        this.stateChanged = false;
+        this.timeoutChanged = false;
+        this.newlyLinkedEntities.clear();
+        this.persistedFieldData = fieldData;
     }
 
     final <EVENT extends Record, I extends Id<?, I>, EM extends EventMessage<I, ? extends EVENT>> void handleEvent(CqrsSagaEventHandler<THIS, I, EVENT> cqrsSagaEventHandler, EM eventMessage) {
@@ -0,0 +1,259 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Write-through cache of live saga instances in front of the {@link SagaStore}, so advancing a saga that receives a
+ * burst of events doesn't rebuild it from its stored data for every event. Sagas are kept by {@link SagaId}, next to an
+ * index from linked entity and saga class to the cached sagas. An index entry is only kept while it holds all the sagas
+ * the store has for it, so a lookup either finds the complete result or goes to the store.
+ * <p>
+ * The sagas are spread over segments that each evict least recently used on their own, so the shards only contend on
+ * the segment of the saga they touch. A segment holds at least 64 sagas and together they hold about
+ * {@code cqrs.sagaCache.maxSize} sagas, evicting a saga drops the index entries of its linked entities. The index is a
+ * {@link ConcurrentHashMap} whose entries are only changed atomically per key. The cache assumes this instance is the
+ * only writer of the store.
+ */
+@Singleton
+@SuppressWarnings({"rawtypes", "unchecked"})
+final class SagaCache {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private final int maxSize;
+
+    private final Segment[] segments;
+
+    private final ConcurrentMap<IndexKey, IndexEntry> associatedSagas = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    @Inject
+    SagaCache(@Value("${cqrs.sagaCache.maxSize:0}") int maxSize) {
+        this.maxSize = maxSize;
+        int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maxSize + segmentCount - 1) / segmentCount);
+        }
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<S> findAssociatedSagas(I id, Class<S> sagaClass, Supplier<Flux<S>> store) {
+        if (!isEnabled()) {
+            return store.get();
+        }
+        var indexKey = new IndexKey(id, sagaClass);
+        if (associatedSagas.get(indexKey) instanceof Indexed indexed) {
+            var cached = new ArrayList<S>(indexed.sagaIds().size());
+            for (SagaId sagaId : indexed.sagaIds()) {
+                var saga = segment(sagaId).get(sagaId);
+                if (saga == null) {
+                    break;
+                }
+                cached.add((S) saga);
+            }
+            if (cached.size() == indexed.sagaIds().size()) {
+                hits.increment();
+                return Flux.fromIterable(cached);
+            }
+        }
+        misses.increment();
+        var load = new Load();
+        associatedSagas.put(indexKey, load);
+        return store.get()
+                .collectList()
+                .flatMapIterable(loaded -> populate(indexKey, loaded, load))
+                .doFinally(signal -> associatedSagas.remove(indexKey, load));
+    }
+
+    <S extends Saga<S>> Mono<S> findSaga(SagaId<S> sagaId, Supplier<Mono<S>> store) {
+        if (!isEnabled()) {
+            return store.get();
+        }
+        var cached = segment(sagaId).get(sagaId);
+        if (cached != null) {
+            hits.increment();
+            return Mono.just((S) cached);
+        }
+        misses.increment();
+        return store.get();
+    }
+
+    <S extends Saga<S>> void put(S saga) {
+        if (!isEnabled()) {
+            return;
+        }
+        SagaId sagaId = saga.getSagaId();
+        unindex(segment(sagaId).put(sagaId, saga));
+        for (Id id : saga.getLinkedEntities()) {
+            // a load in flight for the key is dropped, it may have missed this saga
+            associatedSagas.compute(new IndexKey(id, saga.getClass()), (key, entry) -> entry instanceof Indexed indexed ? indexed.with(sagaId) : null);
+        }
+    }
+
+    void invalidate(Saga<?> saga) {
+        if (!isEnabled()) {
+            return;
+        }
+        SagaId sagaId = saga.getSagaId();
+        segment(sagaId).remove(sagaId);
+        for (Id id : saga.getLinkedEntities()) {
+            associatedSagas.compute(new IndexKey(id, saga.getClass()), (key, entry) -> entry instanceof Indexed indexed ? indexed.without(sagaId) : null);
+        }
+    }
+
+    CacheStatistics statistics() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+
+    /**
+     * Cache the sagas loaded for the index key, unless one of its sagas was stored or invalidated during the load.
+     */
+    private <S extends Saga<S>> List<S> populate(IndexKey indexKey, List<S> loaded, Load load) {
+        if (associatedSagas.get(indexKey) != load || loaded.size() > maxSize) {
+            return loaded;
+        }
+        var sagaIds = new LinkedHashSet<SagaId>();
+        var result = new ArrayList<S>(loaded.size());
+        for (S saga : loaded) {
+            SagaId sagaId = saga.getSagaId();
+            var putIfAbsent = segment(sagaId).putIfAbsent(sagaId, saga);
+            unindex(putIfAbsent.evicted());
+            result.add(putIfAbsent.cached() == null ? saga : (S) putIfAbsent.cached());
+            sagaIds.add(sagaId);
+        }
+        associatedSagas.compute(indexKey, (key, entry) -> entry == load && sagaIds.stream().allMatch(sagaId -> segment(sagaId).contains(sagaId)) ? new Indexed(sagaIds) : entry);
+        return result;
+    }
+
+    private void unindex(Saga<?> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        evictions.increment();
+        for (Id id : evicted.getLinkedEntities()) {
+            associatedSagas.computeIfPresent(new IndexKey(id, evicted.getClass()), (key, entry) -> entry instanceof Indexed ? null : entry);
+        }
+    }
+
+    private Segment segment(SagaId sagaId) {
+        int hash = sagaId.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private record IndexKey(Id id, Class<?> sagaClass) {
+
+    }
+
+    private sealed interface IndexEntry permits Indexed, Load {
+
+    }
+
+    /**
+     * All the sagas the store has for an index key, in the order the store returned them.
+     */
+    private record Indexed(Set<SagaId> sagaIds) implements IndexEntry {
+
+        Indexed with(SagaId sagaId) {
+            var copy = new LinkedHashSet<>(sagaIds);
+            copy.add(sagaId);
+            return new Indexed(copy);
+        }
+
+        Indexed without(SagaId sagaId) {
+            var copy = new LinkedHashSet<>(sagaIds);
+            copy.remove(sagaId);
+            return new Indexed(copy);
+        }
+    }
+
+    /**
+     * A load from the store in flight for an index key, replacing it marks the load as stale.
+     */
+    private static final class Load implements IndexEntry {
+
+    }
+
+    private record PutIfAbsent(Saga cached, Saga evicted) {
+
+    }
+
+    /**
+     * An access-ordered map of sagas with its own lock, the evicted saga is handed back so it's unindexed outside of
+     * the lock.
+     */
+    private static final class Segment {
+
+        private final int maxSize;
+
+        private final LinkedHashMap<SagaId, Saga> sagas = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized Saga get(SagaId sagaId) {
+            return sagas.get(sagaId);
+        }
+
+        synchronized boolean contains(SagaId sagaId) {
+            return sagas.containsKey(sagaId);
+        }
+
+        synchronized Saga put(SagaId sagaId, Saga saga) {
+            sagas.put(sagaId, saga);
+            return evict();
+        }
+
+        synchronized PutIfAbsent putIfAbsent(SagaId sagaId, Saga saga) {
+            var cached = sagas.putIfAbsent(sagaId, saga);
+            return new PutIfAbsent(cached, cached == null ? evict() : null);
+        }
+
+        synchronized void remove(SagaId sagaId) {
+            sagas.remove(sagaId);
+        }
+
+        synchronized int size() {
+            return sagas.size();
+        }
+
+        private Saga evict() {
+            if (sagas.size() <= maxSize) {
+                return null;
+            }
+            var eldest = sagas.entrySet().iterator();
+            var evicted = eldest.next().getValue();
+            eldest.remove();
+            return evicted;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package be.idevelop.cqrs;
 
 import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.BeanRegistration;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.core.beans.BeanIntrospection;
 import io.micronaut.core.beans.BeanIntrospector;
 import io.micronaut.core.type.Argument;
 import io.micronaut.inject.BeanDefinition;
@@ -12,10 +14,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import static be.idevelop.cqrs.SagaState.END_STATE;
 import static be.idevelop.cqrs.SagaState.START_STATE;
@@ -31,82 +44,358 @@ class SagaRepository {
 
     private final SagaStore sagaStore;
 
+    private final CqrsMetrics metrics;
+
+    private final SagaTimeoutScheduler timeouts;
+
+    private final SagaCache cache;
+
+    private final Duration rejectedCommandBackoff;
+
+    @SuppressWarnings("rawtypes")
+    private final Map<Class<?>, List<SagaRoute>> sagaRoutes;
+
     @Inject
-    public SagaRepository(ApplicationContext applicationContext, SagaStore sagaStore) {
+    public SagaRepository(ApplicationContext applicationContext, SagaStore sagaStore, CqrsMetrics metrics, SagaTimeoutScheduler timeouts, SagaCache cache,
+                          @Value("${cqrs.sagaCommands.rejectedBackoff:1s}") Duration rejectedCommandBackoff) {
         this.applicationContext = applicationContext;
         this.sagaStore = sagaStore;
+        this.metrics = metrics;
+        this.timeouts = timeouts;
+        this.cache = cache;
+        this.rejectedCommandBackoff = rejectedCommandBackoff;
+        this.sagaRoutes = indexSagaRoutes(applicationContext);
     }
 
-    @SuppressWarnings({"unchecked"})
-    <I extends Id<A, I>, A extends AggregateRoot<A, I>, EM extends EventMessage<I, ? extends EVENT>, EVENT extends Record, S extends Saga<S>> Mono<EM> handleEventOnSagas(EM eventMessage) {
-        return getCqrsSagaEventHandlers(eventMessage.event())
-                .flatMap(cqrsSagaEventHandler ->
-                        ((Flux<S>) findExistingOrCreateSagaForEventAndEventHandler(eventMessage.objectId(), cqrsSagaEventHandler))
-                                .doOnNext(saga -> saga.handleEvent(cqrsSagaEventHandler, eventMessage))
-                                .doOnNext(saga -> saga.linkEntity(eventMessage.objectId()))
-                                .doOnNext(Saga::updateTimeout)
-                                .doOnNext(this::storeSaga)
-                )
-                .reduce(eventMessage, (em, saga) -> em);
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>, EM extends EventMessage<I, ? extends Record>> Mono<EM> handleEventOnSagas(EM eventMessage) {
+        return handleEventsOnSagas(List.of(eventMessage)).thenReturn(eventMessage);
     }
 
-    @SuppressWarnings("rawtypes")
-    private <I extends Id<A, I>, A extends AggregateRoot<A, I>, EVENT extends Record> Flux<CqrsSagaEventHandler> getCqrsSagaEventHandlers(EVENT event) {
-        var beanDefinitions = applicationContext.getBeanDefinitions(CqrsSagaEventHandler.class);
-        return Flux.fromIterable(beanDefinitions)
-                .filter(beanDefinition -> beanDefinition.isAnnotationPresent(SagaEventHandler.class))
-                .filter(beanDefinition -> Objects.requireNonNull(beanDefinition.getAnnotation(SagaEventHandler.class)).getRequiredValue("event", Class.class) == event.getClass())
-                .doOnNext(matching -> {
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("Found saga event handler {} for event: {}", matching, event);
+    /**
+     * Handle the events published together on the sagas as one batch. The candidate sagas are looked up once per linked
+     * entity and saga class for the whole batch, the events are applied to them in order in memory, and every changed
+     * saga is then stored and publishes its commands once, instead of once per event. When a saga fails to handle an
+     * event, none of the sagas is stored: every saga the batch applied events to is dropped from the cache, and the
+     * commands the batch queued on it are dropped as well.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    <EM extends EventMessage<?, ? extends Record>> Mono<Void> handleEventsOnSagas(List<EM> eventMessages) {
+        Set<SagaLookup> lookups = new LinkedHashSet<>();
+        boolean routed = false;
+        for (EM eventMessage : eventMessages) {
+            for (SagaRoute sagaRoute : getSagaRoutes(eventMessage.event())) {
+                routed = true;
+                if (!sagaRoute.createNew()) {
+                    lookups.add(new SagaLookup(eventMessage.objectId(), sagaRoute.sagaClass()));
+                }
+            }
+        }
+        if (!routed) {
+            return Mono.empty();
+        }
+        var handled = Flux.fromIterable(lookups)
+                .concatMap(lookup -> findCandidates(lookup).map(sagas -> Map.entry(lookup, sagas)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue, LinkedHashMap::new)
+                .flatMap(candidates -> {
+                    Map<SagaId, Saga> changed = new LinkedHashMap<>();
+                    Map<Saga, Set<Command>> applied = new IdentityHashMap<>();
+                    try {
+                        applyEvents(eventMessages, candidates, changed, applied);
+                    } catch (RuntimeException e) {
+                        applied.forEach((saga, queuedBefore) -> {
+                            this.cache.invalidate(saga);
+                            saga.commandsToPublish.removeIf(command -> !queuedBefore.contains(command));
+                        });
+                        return Mono.error(e);
                     }
+                    return Flux.fromIterable(changed.values())
+                            .flatMap(saga -> persist((Saga) saga))
+                            .then();
+                });
+        var first = eventMessages.get(0);
+        return metrics.time(CqrsMetrics.Stage.SAGAS, handled, first.objectId().getEntityClass(), eventMessages.size() == 1 ? first.event().getClass() : null);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Mono<List<Saga>> findCandidates(SagaLookup lookup) {
+        Flux<Saga> sagas = findAssociatedSagas((Id) lookup.objectId(), (Class) lookup.sagaClass());
+        return sagas.collectList().map(ArrayList::new);
+    }
+
+    /**
+     * Apply the events in order to the candidate sagas of their routes, creating the sagas their start routes ask for.
+     * The same saga found for several linked entities is applied to as a single instance, and a created saga is a
+     * candidate for the later events of the batch. Every saga an event is applied to is kept in {@code applied} with the
+     * commands it had queued before, including the saga whose handler throws.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void applyEvents(List<? extends EventMessage<?, ? extends Record>> eventMessages, Map<SagaLookup, List<Saga>> candidates, Map<SagaId, Saga> changed, Map<Saga, Set<Command>> applied) {
+        Map<SagaId, Saga> instances = new HashMap<>();
+        candidates.values().forEach(sagas -> sagas.replaceAll(saga -> instances.computeIfAbsent(saga.getSagaId(), sagaId -> saga)));
+        for (EventMessage eventMessage : eventMessages) {
+            for (SagaRoute sagaRoute : getSagaRoutes(eventMessage.event())) {
+                var lookup = new SagaLookup(eventMessage.objectId(), sagaRoute.sagaClass());
+                if (sagaRoute.createNew()) {
+                    Saga saga = (Saga) sagaRoute.introspection().instantiate(SagaId.createNew(sagaRoute.sagaClass()), Instant.now());
+                    if (applyEvent(saga, sagaRoute, eventMessage, applied)) {
+                        changed.put(saga.getSagaId(), saga);
+                        var sagas = candidates.get(lookup);
+                        if (sagas != null) {
+                            sagas.add(saga);
+                        }
+                    }
+                } else {
+                    for (Saga saga : List.copyOf(candidates.get(lookup))) {
+                        if (applyEvent(saga, sagaRoute, eventMessage, applied)) {
+                            changed.put(saga.getSagaId(), saga);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached saga instance is shared between the shards of its linked entities, so the event is applied under its
+     * lock, provided the saga is still live and in the state of the route.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static boolean applyEvent(Saga saga, SagaRoute sagaRoute, EventMessage eventMessage, Map<Saga, Set<Command>> applied) {
+        synchronized (saga) {
+            if (!sagaRoute.state().equals(saga.getCurrentState().name()) || !saga.isLive()) {
+                return false;
+            }
+            applied.computeIfAbsent(saga, ignored -> {
+                Set<Command> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+                queued.addAll(saga.commandsToPublish);
+                return queued;
+            });
+            saga.handleEvent(sagaRoute.handler(), eventMessage);
+            saga.linkEntity(eventMessage.objectId());
+            saga.updateTimeout();
+            return true;
+        }
+    }
+
+    /**
+     * The linked entity on whose shard the events of the saga are handled, so its timeout can be handled on the same
+     * shard, ordered with its events. A saga linked to several entities picks the same one every time.
+     */
+    <S extends Saga<S>> Mono<Id<?, ?>> findTimeoutEntity(SagaId<S> sagaId) {
+        return cache.findSaga(sagaId, () -> sagaStore.findSaga(sagaId))
+                .flatMap(saga -> Mono.justOrEmpty(saga.getLinkedEntities().stream()
+                        .<Id<?, ?>>map(objectId -> objectId)
+                        .min(Comparator.comparing(Id::asString))));
+    }
+
+    /**
+     * Deliver a {@link SagaTimedOutEvent} to the saga, unless its timeout moved in the meantime. A saga that is no
+     * longer live afterwards is ended.
+     */
+    <S extends Saga<S>> Mono<Void> handleTimeout(SagaId<S> sagaId, Instant scheduledTimeout) {
+        return cache.findSaga(sagaId, () -> sagaStore.findSaga(sagaId))
+                .filter(saga -> saga.getCurrentState().isLive())
+                .flatMap(saga -> {
+                    if (saga.getScheduledTimeout().isAfter(scheduledTimeout)) {
+                        timeouts.schedule(sagaId, saga.getScheduledTimeout());
+                        return Mono.empty();
+                    }
+                    return advance(saga, saga.getCurrentState().name(), () -> deliverTimeout(saga));
                 })
-                .map(applicationContext::getBean)
-                .cast(CqrsSagaEventHandler.class);
-    }
-
-    @SuppressWarnings("unchecked")
-    private <I extends Id<A, I>, A extends AggregateRoot<A, I>, EVENT extends Record, S extends Saga<S>> Flux<S> findExistingOrCreateSagaForEventAndEventHandler(I objectId, CqrsSagaEventHandler<S, I, EVENT> cqrsSagaEventHandler) {
-        BeanDefinition<? extends CqrsSagaEventHandler<S, I, EVENT>> beanDefinition = (BeanDefinition<? extends CqrsSagaEventHandler<S, I, EVENT>>) applicationContext.getBeanDefinition(cqrsSagaEventHandler.getClass());
-        List<Argument<?>> typeArguments = beanDefinition.getTypeArguments(CqrsSagaEventHandler.class);
-        Class<S> sagaClass = (Class<S>) typeArguments.get(0).getType();
-        return Mono.justOrEmpty(beanDefinition)
-                .flatMapIterable(BeanDefinition::getExecutableMethods)
-                .filter(method -> method.getArguments().length == 3)
-                .flatMap(method ->
-                        Mono.justOrEmpty(method.getAnnotation(SagaEventHandler.class)).flatMapMany(annotation -> {
-                            String state = annotation.getRequiredValue("state", String.class);
-                            boolean createNew = START_STATE.name().equals(state);
-                            if (createNew) {
-                                return Mono.justOrEmpty(BeanIntrospector.SHARED.findIntrospection(sagaClass))
-                                        .map(i -> i.instantiate(SagaId.createNew(sagaClass), Instant.now()));
-                            } else {
-                                return sagaStore.findAssociatedSagas(objectId, sagaClass)
-                                        .filter(saga -> state.equals(saga.getCurrentState().name()))
-                                        .filter(Saga::isLive);
-                            }
-                        })
-                );
+                .then();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <S extends Saga<S>> void deliverTimeout(S saga) {
+        var eventMessage = new EventMessage<>(new EventMeta<>(saga.getSagaId(), -1, Instant.now()), new SagaTimedOutEvent(saga.getScheduledTimeout()));
+        getSagaRoutes(eventMessage.event()).stream()
+                .filter(sagaRoute -> sagaRoute.sagaClass().equals(saga.getClass()))
+                .filter(sagaRoute -> sagaRoute.state().equals(saga.getCurrentState().name()))
+                .findFirst()
+                .ifPresentOrElse(sagaRoute -> {
+                    saga.handleEvent(sagaRoute.handler(), (EventMessage) eventMessage);
+                    saga.updateTimeout();
+                }, () -> LOGGER.info("Saga {} timed out in state {}", saga.getSagaId(), saga.getCurrentState().name()));
+        if (!saga.isLive()) {
+            saga.setCurrentState(END_STATE);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private <EVENT extends Record> List<SagaRoute> getSagaRoutes(EVENT event) {
+        var routes = this.sagaRoutes.getOrDefault(event.getClass(), List.of());
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Found saga event handlers {} for event: {}", routes, event);
+        }
+        return routes;
+    }
+
+    private <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<S> findAssociatedSagas(I objectId, Class<S> sagaClass) {
+        return cache.findAssociatedSagas(objectId, sagaClass, () -> sagaStore.findAssociatedSagas(objectId, sagaClass));
     }
 
-    private <S extends Saga<S>> void storeSaga(S saga) {
+    /**
+     * Index every {@link SagaEventHandler} by the event it handles, so routing an event to its sagas is a single map
+     * lookup instead of a scan over all saga event handler bean definitions.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Map<Class<?>, List<SagaRoute>> indexSagaRoutes(ApplicationContext applicationContext) {
+        Map<Class<?>, List<SagaRoute>> routes = new HashMap<>();
+        for (BeanDefinition<CqrsSagaEventHandler> beanDefinition : applicationContext.getBeanDefinitions(CqrsSagaEventHandler.class)) {
+            if (!beanDefinition.isAnnotationPresent(SagaEventHandler.class)) {
+                continue;
+            }
+            Class<?> eventClass = Objects.requireNonNull(beanDefinition.getAnnotation(SagaEventHandler.class)).getRequiredValue("event", Class.class);
+            List<Argument<?>> typeArguments = beanDefinition.getTypeArguments(CqrsSagaEventHandler.class);
+            Class sagaClass = typeArguments.get(0).getType();
+            BeanIntrospection introspection = (BeanIntrospection) BeanIntrospector.SHARED.findIntrospection(sagaClass).orElse(null);
+            var handler = new LazyHandler(applicationContext, beanDefinition);
+            beanDefinition.getExecutableMethods().stream()
+                    .filter(method -> method.getArguments().length == 3)
+                    .map(method -> method.getAnnotation(SagaEventHandler.class))
+                    .filter(Objects::nonNull)
+                    .map(annotation -> annotation.getRequiredValue("state", String.class))
+                    .forEach(state -> {
+                        boolean createNew = START_STATE.name().equals(state);
+                        if (createNew && introspection == null) {
+                            LOGGER.warn("Saga {} is not introspected, it cannot be created for event {}", sagaClass.getName(), eventClass.getName());
+                            return;
+                        }
+                        routes.computeIfAbsent(eventClass, key -> new ArrayList<>())
+                                .add(new SagaRoute(handler, sagaClass, state, createNew, introspection));
+                    });
+        }
+        routes.replaceAll((eventClass, eventRoutes) -> List.copyOf(eventRoutes));
+        return Map.copyOf(routes);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private record SagaRoute<S extends Saga<S>, I extends Id<?, I>, EVENT extends Record>(
+            LazyHandler lazyHandler,
+            Class<S> sagaClass,
+            String state,
+            boolean createNew,
+            BeanIntrospection<S> introspection
+    ) {
+
+        @SuppressWarnings("unchecked")
+        CqrsSagaEventHandler<S, I, EVENT> handler() {
+            return lazyHandler.get();
+        }
+    }
+
+    /**
+     * Resolves the saga event handler bean on first use instead of while indexing, as a handler may depend on beans that
+     * depend on the {@link SagaRepository} themselves, like the {@link CommandBus}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class LazyHandler {
+
+        private final ApplicationContext applicationContext;
+
+        private final BeanDefinition<CqrsSagaEventHandler> beanDefinition;
+
+        private volatile CqrsSagaEventHandler handler;
+
+        private LazyHandler(ApplicationContext applicationContext, BeanDefinition<CqrsSagaEventHandler> beanDefinition) {
+            this.applicationContext = applicationContext;
+            this.beanDefinition = beanDefinition;
+        }
+
+        private CqrsSagaEventHandler get() {
+            var resolved = handler;
+            if (resolved == null) {
+                resolved = applicationContext.getBean(beanDefinition);
+                handler = resolved;
+            }
+            return resolved;
+        }
+    }
+
+    private record SagaLookup(Id<?, ?> objectId, Class<?> sagaClass) {
+
+    }
+
+    /**
+     * Apply a change to the saga and store it, provided it's still in the given state, completing once the saga is
+     * durable. A saga that fails to change is dropped from the cache as it no longer matches the stored saga.
+     */
+    private <S extends Saga<S>> Mono<S> advance(S saga, String state, Runnable change) {
+        try {
+            synchronized (saga) {
+                if (!state.equals(saga.getCurrentState().name())) {
+                    return Mono.empty();
+                }
+                change.run();
+            }
+        } catch (RuntimeException e) {
+            this.cache.invalidate(saga);
+            return Mono.error(e);
+        }
+        return persist(saga).thenReturn(saga);
+    }
+
+    /**
+     * Store the changed saga and publish its queued commands once it's durable. The saga is handed over to the store
+     * under its lock, and dropped from the cache when that fails.
+     */
+    private <S extends Saga<S>> Mono<Void> persist(S saga) {
+        Mono<Void> stored;
+        try {
+            synchronized (saga) {
+                stored = storeSaga(saga);
+            }
+        } catch (RuntimeException e) {
+            this.cache.invalidate(saga);
+            return Mono.error(e);
+        }
+        return stored
+                .doOnError(e -> this.cache.invalidate(saga))
+                .then(Mono.fromRunnable(() -> performOnSuccessActionsAsync(saga)));
+    }
+
+    /**
+     * Hand the saga over to the store, its commands are only published once the returned mono completes and the saga
+     * is durable.
+     */
+    private <S extends Saga<S>> Mono<Void> storeSaga(S saga) {
         if (END_STATE.equals(saga.getCurrentState())) {
-            this.sagaStore.deleteSaga(saga);
-        } else {
-            this.sagaStore.storeSaga(saga);
+            this.cache.invalidate(saga);
+            this.timeouts.cancel(saga.getSagaId());
+            return this.sagaStore.deleteSagaAsync(saga);
         }
-        performOnSuccessActionsAsync(saga);
+        this.cache.put(saga);
+        this.timeouts.schedule(saga.getSagaId(), saga.getScheduledTimeout());
+        return this.sagaStore.storeSagaAsync(saga);
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
     @Async(SAGA_ON_SUCCESS_ACTIONS_THREAD)
     <S extends Saga<S>> void performOnSuccessActionsAsync(S saga) {
+        publishCommands(saga);
+    }
+
+    /**
+     * Publish the queued commands of the saga in order. A command is only taken from the queue once the command bus
+     * accepted it, when its command queue is full the saga publishes it and the commands after it again after a
+     * backoff.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <S extends Saga<S>> void publishCommands(S saga) {
         this.applicationContext.getActiveBeanRegistrations(CommandBus.class).stream().findFirst().map(BeanRegistration::getBean)
                 .ifPresent(commandBus -> {
-                            while (!saga.commandsToPublish.isEmpty()) {
-                                commandBus.publish(
-                                        (Command) saga.commandsToPublish.poll()
-                                );
+                            synchronized (saga.commandsToPublish) {
+                                Command command;
+                                while ((command = saga.commandsToPublish.peek()) != null) {
+                                    try {
+                                        commandBus.publish(command);
+                                    } catch (CommandRejectedException e) {
+                                        LOGGER.warn("{}, publishing the {} queued commands of saga {} again in {}", e.getMessage(), saga.commandsToPublish.size(), saga.getSagaId(), rejectedCommandBackoff);
+                                        Mono.delay(rejectedCommandBackoff, Schedulers.boundedElastic())
+                                                .subscribe(tick -> publishCommands(saga));
+                                        return;
+                                    }
+                                    saga.commandsToPublish.poll();
+                                }
                             }
                         }
                 );
@@ -0,0 +1,77 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.core.reflect.GenericTypeUtils;
+import io.micronaut.core.type.Argument;
+import io.micronaut.json.JsonMapper;
+import io.micronaut.serde.bson.BsonBinaryMapper;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes the state record of a {@link TypedSaga} as binary BSON. Every thread encodes into its own reusable buffer,
+ * so storing a saga only allocates the resulting bytes; buffers that grew beyond {@value #MAX_POOLED_BUFFER_SIZE} bytes
+ * are dropped after use.
+ */
+@Singleton
+@SuppressWarnings({"rawtypes", "unchecked"})
+public final class SagaStateCodec {
+
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private final JsonMapper mapper;
+
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    private final ConcurrentMap<Class<?>, Argument<? extends Record>> stateArguments = new ConcurrentHashMap<>();
+
+    @Inject
+    public SagaStateCodec(BsonBinaryMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Codec on top of another mapper, used by saga stores that aren't given the binary codec.
+     */
+    SagaStateCodec(JsonMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    byte[] encode(TypedSaga<?, ?> saga) throws IOException {
+        var buffer = buffers.get();
+        buffer.reset();
+        try {
+            mapper.writeValue(buffer, (Argument) stateArgument(saga.getClass()), saga.getState());
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+        }
+    }
+
+    void decode(TypedSaga saga, byte[] state) throws IOException {
+        saga.hydrateState(mapper.readValue(state, stateArgument(saga.getClass())));
+    }
+
+    private Argument<? extends Record> stateArgument(Class<?> sagaClass) {
+        return stateArguments.computeIfAbsent(sagaClass, clazz -> {
+            var typeArguments = GenericTypeUtils.resolveSuperTypeGenericArguments(clazz, TypedSaga.class);
+            if (typeArguments.length < 2) {
+                throw new IllegalStateException("Could not resolve the state record of Saga " + clazz.getName());
+            }
+            return Argument.of((Class<? extends Record>) typeArguments[1]);
+        });
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+}
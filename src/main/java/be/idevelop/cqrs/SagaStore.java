@@ -1,6 +1,9 @@
 package be.idevelop.cqrs;
 
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
 
 public interface SagaStore {
 
@@ -9,4 +12,53 @@ public interface SagaStore {
     <S extends Saga<S>> void storeSaga(S saga);
 
     <S extends Saga<S>> void deleteSaga(S saga);
+
+    /**
+     * Store the saga as it is when called, completing once it's durable. Stores backed by a remote database should
+     * override this so the caller doesn't wait for the write, the default stores the saga right away.
+     */
+    default <S extends Saga<S>> Mono<Void> storeSagaAsync(S saga) {
+        try {
+            storeSaga(saga);
+            return Mono.empty();
+        } catch (RuntimeException e) {
+            return Mono.error(e);
+        }
+    }
+
+    /**
+     * Delete the saga, completing once the delete is durable. The default deletes the saga right away.
+     */
+    default <S extends Saga<S>> Mono<Void> deleteSagaAsync(S saga) {
+        try {
+            deleteSaga(saga);
+            return Mono.empty();
+        } catch (RuntimeException e) {
+            return Mono.error(e);
+        }
+    }
+
+    /**
+     * Find a saga by its id, used to deliver its timeout. Stores that don't support this never deliver timeouts.
+     */
+    default <S extends Saga<S>> Mono<S> findSaga(SagaId<S> sagaId) {
+        return Mono.empty();
+    }
+
+    /**
+     * Whether this store implements {@link #findSaga(SagaId)}. Stores that do should return true, the saga timeouts
+     * warn at startup when they rely on a store that doesn't.
+     */
+    default boolean supportsFindSaga() {
+        return false;
+    }
+
+    /**
+     * Find the timeouts of the stored sagas that are scheduled before the given instant, in order of their scheduled
+     * timeout. Stores should serve this from an index on the scheduled timeout, it's used to load the pending timeouts
+     * at startup.
+     */
+    default Flux<SagaTimeout> findScheduledTimeouts(Instant before) {
+        return Flux.empty();
+    }
 }
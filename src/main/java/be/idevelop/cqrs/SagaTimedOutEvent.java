@@ -0,0 +1,11 @@
+package be.idevelop.cqrs;
+
+import java.time.Instant;
+
+/**
+ * Delivered to the {@link SagaEventHandler} of a saga for its current state once the scheduled timeout of the saga
+ * passed, with the {@link SagaId} as object id of the event meta. A saga that is still timed out after handling this
+ * event is ended, as is a saga without a handler for it.
+ */
+public record SagaTimedOutEvent(Instant scheduledTimeout) {
+}
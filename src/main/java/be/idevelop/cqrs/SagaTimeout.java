@@ -0,0 +1,7 @@
+package be.idevelop.cqrs;
+
+import java.time.Instant;
+
+@SuppressWarnings("rawtypes")
+public record SagaTimeout(SagaId sagaId, Instant scheduledTimeout) {
+}
@@ -0,0 +1,273 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.BeanProvider;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers saga timeouts actively through a hashed timing wheel. Every pending timeout sits in the bucket of the tick it
+ * expires in, with the number of wheel rounds left, so scheduling, rescheduling and cancelling a timeout are constant
+ * time regardless of the number of open sagas. Callers only enqueue changes, the wheel itself is owned by a single
+ * thread that applies them on every tick and hands expired timeouts to the {@link SagaRepository}. A timeout is handled
+ * on the shard of the linked entity of its saga, where the events of that entity are handled too, so the timeout and
+ * those events change the saga one after the other even when the sagas aren't cached. The pending timeouts are loaded
+ * from the {@link SagaStore} at startup.
+ */
+@Context
+@SuppressWarnings("rawtypes")
+final class SagaTimeoutScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SagaTimeoutScheduler.class);
+
+    private final BeanProvider<SagaRepository> sagaRepository;
+
+    private final BeanProvider<CqrsScheduler> scheduler;
+
+    private final long tickMillis;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final ConcurrentMap<SagaId, Timeout> timeouts = new ConcurrentHashMap<>();
+
+    private final Queue<Timeout> additions = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Timeout> cancellations = new ConcurrentLinkedQueue<>();
+
+    private final long startMillis;
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    private long tick;
+
+    @Inject
+    SagaTimeoutScheduler(BeanProvider<SagaStore> sagaStore,
+                         BeanProvider<SagaRepository> sagaRepository,
+                         BeanProvider<CqrsScheduler> scheduler,
+                         @Value("${cqrs.sagaTimeouts.enabled:true}") boolean enabled,
+                         @Value("${cqrs.sagaTimeouts.tickDuration:100ms}") Duration tickDuration,
+                         @Value("${cqrs.sagaTimeouts.wheelSize:512}") int wheelSize) {
+        this.sagaRepository = sagaRepository;
+        this.scheduler = scheduler;
+        this.tickMillis = Math.max(1, tickDuration.toMillis());
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startMillis = System.currentTimeMillis();
+
+        if (enabled) {
+            this.worker = new Thread(this::run, "cqrs-saga-timeouts");
+            this.worker.setDaemon(true);
+            this.worker.start();
+            if (sagaStore.isPresent()) {
+                if (!sagaStore.get().supportsFindSaga()) {
+                    LOGGER.warn("Saga store {} does not support finding sagas by id, saga timeouts are never delivered", sagaStore.get().getClass().getName());
+                }
+                sagaStore.get().findScheduledTimeouts(Instant.MAX)
+                        .doOnNext(timeout -> schedule(timeout.sagaId(), timeout.scheduledTimeout()))
+                        .count()
+                        .subscribe(count -> LOGGER.info("Loaded {} saga timeouts", count),
+                                error -> LOGGER.error("Could not load the saga timeouts", error));
+            }
+        } else {
+            this.worker = null;
+        }
+    }
+
+    /**
+     * Schedule the timeout of the saga, replacing its previous timeout. Rescheduling at the same instant is a no-op.
+     */
+    void schedule(SagaId sagaId, Instant scheduledTimeout) {
+        if (worker == null || scheduledTimeout == null || Instant.MAX.equals(scheduledTimeout)) {
+            return;
+        }
+        timeouts.compute(sagaId, (key, previous) -> {
+            if (previous != null) {
+                if (previous.scheduledTimeout.equals(scheduledTimeout)) {
+                    return previous;
+                }
+                cancel(previous);
+            }
+            var timeout = new Timeout(sagaId, scheduledTimeout);
+            additions.add(timeout);
+            return timeout;
+        });
+    }
+
+    void cancel(SagaId sagaId) {
+        if (worker != null) {
+            timeouts.computeIfPresent(sagaId, (key, previous) -> {
+                cancel(previous);
+                return null;
+            });
+        }
+    }
+
+    int size() {
+        return timeouts.size();
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+        cancellations.add(timeout);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startMillis + (tick + 1) * tickMillis;
+            long sleepMillis;
+            while ((sleepMillis = deadline - System.currentTimeMillis()) > 0) {
+                LockSupport.parkNanos(sleepMillis * 1_000_000);
+                if (!running) {
+                    return;
+                }
+            }
+            transferAdditions();
+            removeCancellations();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferAdditions() {
+        Timeout timeout;
+        while ((timeout = additions.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long delayMillis = Math.max(0, toEpochMilli(timeout.scheduledTimeout) - startMillis);
+            long expiryTick = Math.max((delayMillis + tickMillis - 1) / tickMillis - 1, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private static long toEpochMilli(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE / 2;
+        }
+    }
+
+    private void removeCancellations() {
+        Timeout timeout;
+        while ((timeout = cancellations.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expire(Timeout timeout) {
+        if (!timeouts.remove(timeout.sagaId, timeout)) {
+            return;
+        }
+        var repository = sagaRepository.get();
+        var cqrsScheduler = scheduler.get();
+        repository.findTimeoutEntity(timeout.sagaId)
+                .map(objectId -> cqrsScheduler.schedule((Id) objectId))
+                .defaultIfEmpty(cqrsScheduler.schedule(timeout.sagaId))
+                .flatMap(shard -> repository.handleTimeout(timeout.sagaId, timeout.scheduledTimeout)
+                        .subscribeOn(shard)
+                        .contextWrite(Context.of(CqrsScheduler.SHARD_CONTEXT_KEY, shard)))
+                .subscribe(null, error -> LOGGER.error("Could not handle the timeout of Saga {}", timeout.sagaId, error));
+    }
+
+    private static final class Timeout {
+
+        private final SagaId sagaId;
+
+        private final Instant scheduledTimeout;
+
+        private volatile boolean cancelled;
+
+        private long remainingRounds;
+
+        private Bucket bucket;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        private Timeout(SagaId sagaId, Instant scheduledTimeout) {
+            this.sagaId = sagaId;
+            this.scheduledTimeout = scheduledTimeout;
+        }
+    }
+
+    private final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        private void expire() {
+            var timeout = head;
+            while (timeout != null) {
+                var next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    SagaTimeoutScheduler.this.expire(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
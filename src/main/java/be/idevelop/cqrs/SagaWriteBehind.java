@@ -0,0 +1,290 @@
+package be.idevelop.cqrs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind queue of an {@link AbstractSagaStore}. Writes are queued per {@link SagaId}, a later write to the same
+ * saga is coalesced with the queued one, and a single flusher thread hands them to the store in batches of at most
+ * {@code maxBatchSize} writes, once that many are queued or at least every {@code flushInterval}. The flusher writes one
+ * batch at a time, so the writes to a saga reach the store in order. Every write completes once the batch holding it,
+ * or the write that replaced it, is written, on the shard in the {@link CqrsScheduler#SHARD_CONTEXT_KEY} context entry
+ * of the caller or else on the bounded elastic scheduler, so the flusher doesn't run the callers' pipelines.
+ * <p>
+ * At most {@code maxPending} sagas are queued for the next batch. Writes for other sagas wait in a backlog, still
+ * coalesced per saga, and move up in order every time the flusher takes a batch. Their callers aren't parked, the
+ * returned {@link Mono} completes later, so a caller waiting for its write is held back as by a synchronous store
+ * without blocking its shard. The queued and waiting writes are indexed by linked entity for the lookups of the store.
+ * <p>
+ * The writes after a failed one may be deltas that miss its changes, so the next write of a saga whose write failed
+ * writes the saga in full.
+ */
+@SuppressWarnings("rawtypes")
+final class SagaWriteBehind {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SagaWriteBehind.class);
+
+    private final Consumer<List<AbstractSagaStore.SagaWrite>> store;
+
+    private final int maxBatchSize;
+
+    private final int maxPending;
+
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition flushNeeded = lock.newCondition();
+
+    private final Scheduler continuationScheduler = Schedulers.boundedElastic();
+
+    private final Thread flusher;
+
+    private Map<SagaId, PendingWrite> pending = new LinkedHashMap<>();
+
+    private final Map<SagaId, PendingWrite> waiting = new LinkedHashMap<>();
+
+    private Map<SagaId, PendingWrite> flushing = Map.of();
+
+    private final Map<Id, Set<SagaId>> queuedByEntity = new HashMap<>();
+
+    private final Map<SagaId, Set<Id>> entitiesBySaga = new HashMap<>();
+
+    private final Set<SagaId> failed = new HashSet<>();
+
+    private volatile boolean running = true;
+
+    SagaWriteBehind(String name, Consumer<List<AbstractSagaStore.SagaWrite>> store, int maxBatchSize, int maxPending, Duration flushInterval) {
+        this.store = store;
+        this.maxBatchSize = maxBatchSize;
+        this.maxPending = Math.max(maxPending, maxBatchSize);
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.flusher = new Thread(this::flush, name + "-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @param linkedEntities the entities the saga is linked to, under which the write is found while it's queued
+     */
+    Mono<Void> write(AbstractSagaStore.SagaWrite write, Set<Id> linkedEntities) {
+        CompletableFuture<Void> written;
+        lock.lock();
+        try {
+            if (!running) {
+                return Mono.error(new IllegalStateException("The write-behind of the saga store is stopped"));
+            }
+            var pendingWrite = queuedOrWaiting(write.id());
+            if (pendingWrite == null) {
+                pendingWrite = new PendingWrite();
+                (pending.size() < maxPending && waiting.isEmpty() ? pending : waiting).put(write.id(), pendingWrite);
+            }
+            var queuedWrite = failed.remove(write.id()) ? write.fullWrite() : write;
+            pendingWrite.write = pendingWrite.write == null ? queuedWrite : pendingWrite.write.coalesce(queuedWrite);
+            written = pendingWrite.written;
+            index(write.id(), linkedEntities);
+            if (pending.size() >= maxBatchSize) {
+                flushNeeded.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Mono.deferContextual(context -> Mono.fromFuture(written)
+                .publishOn(context.getOrDefault(CqrsScheduler.SHARD_CONTEXT_KEY, continuationScheduler)));
+    }
+
+    /**
+     * @return the latest queued or flushing write of every saga linked to the entity
+     */
+    Map<SagaId, AbstractSagaStore.SagaWrite> queued(Id linkedEntity) {
+        var result = new LinkedHashMap<SagaId, AbstractSagaStore.SagaWrite>();
+        lock.lock();
+        try {
+            for (SagaId sagaId : queuedByEntity.getOrDefault(linkedEntity, Set.of())) {
+                var write = latest(sagaId);
+                if (write != null) {
+                    result.put(sagaId, write);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    AbstractSagaStore.SagaWrite queued(SagaId sagaId) {
+        lock.lock();
+        try {
+            return latest(sagaId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting writes and flush the queued ones.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            running = false;
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            Map<SagaId, PendingWrite> batch;
+            lock.lock();
+            try {
+                long remainingNanos = flushIntervalNanos;
+                while (running && pending.size() < maxBatchSize && remainingNanos > 0) {
+                    remainingNanos = flushNeeded.awaitNanos(remainingNanos);
+                }
+                if (!running && pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                flushing = batch;
+                admitWaiting();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (!batch.isEmpty()) {
+                write(new ArrayList<>(batch.values()));
+            }
+            lock.lock();
+            try {
+                flushing = Map.of();
+                batch.keySet().forEach(this::unindexWritten);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Move the waiting writes up into the next batch, in the order they arrived, as far as there is room.
+     */
+    private void admitWaiting() {
+        var iterator = waiting.entrySet().iterator();
+        while (iterator.hasNext() && pending.size() < maxPending) {
+            var waitingWrite = iterator.next();
+            pending.put(waitingWrite.getKey(), waitingWrite.getValue());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Make the next write of every saga of the failed writes a full one, turning the write queued for it meanwhile into
+     * a full write as well.
+     */
+    private void rewriteFailed(List<PendingWrite> failedWrites) {
+        lock.lock();
+        try {
+            for (PendingWrite failedWrite : failedWrites) {
+                var sagaId = failedWrite.write.id();
+                var queued = queuedOrWaiting(sagaId);
+                if (queued != null) {
+                    queued.write = queued.write.fullWrite();
+                } else if (!failedWrite.write.isDelete()) {
+                    failed.add(sagaId);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PendingWrite queuedOrWaiting(SagaId sagaId) {
+        var pendingWrite = pending.get(sagaId);
+        return pendingWrite == null ? waiting.get(sagaId) : pendingWrite;
+    }
+
+    private AbstractSagaStore.SagaWrite latest(SagaId sagaId) {
+        var pendingWrite = queuedOrWaiting(sagaId);
+        if (pendingWrite == null) {
+            pendingWrite = flushing.get(sagaId);
+        }
+        return pendingWrite == null ? null : pendingWrite.write;
+    }
+
+    private void index(SagaId sagaId, Set<Id> linkedEntities) {
+        var entities = entitiesBySaga.computeIfAbsent(sagaId, id -> new LinkedHashSet<>());
+        for (Id linkedEntity : linkedEntities) {
+            if (entities.add(linkedEntity)) {
+                queuedByEntity.computeIfAbsent(linkedEntity, entity -> new LinkedHashSet<>()).add(sagaId);
+            }
+        }
+    }
+
+    /**
+     * Drop a written saga from the index, unless it was written again in the meantime.
+     */
+    private void unindexWritten(SagaId sagaId) {
+        if (queuedOrWaiting(sagaId) != null) {
+            return;
+        }
+        var entities = entitiesBySaga.remove(sagaId);
+        if (entities == null) {
+            return;
+        }
+        for (Id linkedEntity : entities) {
+            var sagaIds = queuedByEntity.get(linkedEntity);
+            sagaIds.remove(sagaId);
+            if (sagaIds.isEmpty()) {
+                queuedByEntity.remove(linkedEntity);
+            }
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+        for (int from = 0; from < batch.size(); from += maxBatchSize) {
+            var chunk = batch.subList(from, Math.min(from + maxBatchSize, batch.size()));
+            try {
+                store.accept(chunk.stream().map(pendingWrite -> pendingWrite.write).toList());
+                chunk.forEach(pendingWrite -> pendingWrite.written.complete(null));
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not write a batch of {} sagas", chunk.size(), e);
+                rewriteFailed(chunk);
+                chunk.forEach(pendingWrite -> pendingWrite.written.completeExceptionally(e));
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        private AbstractSagaStore.SagaWrite write;
+    }
+}
@@ -0,0 +1,7 @@
+package be.idevelop.cqrs;
+
+import java.time.Instant;
+
+public record Snapshot<I extends Id<?, I>>(I objectId, long version, Instant timestamp, byte[] fieldData) {
+
+}
@@ -0,0 +1,28 @@
+package be.idevelop.cqrs;
+
+import java.time.Duration;
+import java.time.Instant;
+
+record SnapshotPolicy(int eventThreshold, Duration interval) {
+
+    boolean isEnabled() {
+        return eventThreshold > 0 || !interval.isZero();
+    }
+
+    /**
+     * A snapshot is required once at least {@link #eventThreshold} events were saved since the last snapshot, or when
+     * new events were saved and the last snapshot is older than {@link #interval}. An aggregate root that was never
+     * snapshotted is considered out of date for the time based policy.
+     */
+    boolean isSnapshotRequired(AggregateRoot<?, ?> aggregateRoot, Instant now) {
+        long eventsSinceSnapshot = aggregateRoot.version - aggregateRoot.snapshotVersion;
+        if (eventsSinceSnapshot <= 0) {
+            return false;
+        }
+        if (eventThreshold > 0 && eventsSinceSnapshot >= eventThreshold) {
+            return true;
+        }
+        return !interval.isZero()
+                && (aggregateRoot.snapshotTimestamp == null || !now.isBefore(aggregateRoot.snapshotTimestamp.plus(interval)));
+    }
+}
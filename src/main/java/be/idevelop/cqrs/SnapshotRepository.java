@@ -0,0 +1,89 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Value;
+import io.micronaut.core.type.Argument;
+import io.micronaut.json.JsonMapper;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+
+@Singleton
+final class SnapshotRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotRepository.class);
+
+    private final SnapshotStore snapshotStore;
+
+    private final JsonMapper jsonMapper;
+
+    private final AggregateRootFactory aggregateRootFactory;
+
+    private final SnapshotPolicy snapshotPolicy;
+
+    @Inject
+    SnapshotRepository(Optional<SnapshotStore> snapshotStore,
+                       JsonMapper jsonMapper,
+                       AggregateRootFactory aggregateRootFactory,
+                       @Value("${cqrs.snapshot.threshold:0}") int threshold,
+                       @Value("${cqrs.snapshot.interval:0s}") Duration interval) {
+        this.snapshotStore = snapshotStore.orElse(null);
+        this.jsonMapper = jsonMapper;
+        this.aggregateRootFactory = aggregateRootFactory;
+        this.snapshotPolicy = new SnapshotPolicy(threshold, interval);
+    }
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> restore(I objectId, Class<A> clazz) {
+        if (this.snapshotStore == null) {
+            return Mono.empty();
+        }
+        return this.snapshotStore.retrieveSnapshot(objectId, clazz)
+                .map(snapshot -> aggregateRootFactory.createNewAggregateRootInstance(objectId, clazz)
+                        .restore(snapshot.version(), snapshot.timestamp(), readFieldData(snapshot)))
+                .onErrorResume(e -> {
+                    LOGGER.warn("Could not restore snapshot for {}, falling back to a full replay", objectId, e);
+                    return Mono.empty();
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<A> snapshotIfRequired(A aggregateRoot) {
+        var now = Instant.now();
+        if (this.snapshotStore == null || !this.snapshotPolicy.isEnabled() || !this.snapshotPolicy.isSnapshotRequired(aggregateRoot, now)) {
+            return Mono.just(aggregateRoot);
+        }
+        Map<String, Object> fieldData = aggregateRoot.getFieldData();
+        if (fieldData == null) {
+            return Mono.just(aggregateRoot);
+        }
+        try {
+            var snapshot = new Snapshot<>(aggregateRoot.getId(), aggregateRoot.version, now, jsonMapper.writeValueAsBytes(fieldData));
+            return this.snapshotStore.saveSnapshot(snapshot, (Class<A>) aggregateRoot.getClass())
+                    .filter(success -> success)
+                    .map(success -> aggregateRoot.markSnapshotted(snapshot.version(), snapshot.timestamp()))
+                    .defaultIfEmpty(aggregateRoot)
+                    .onErrorResume(e -> {
+                        LOGGER.warn("Could not save snapshot for {}", aggregateRoot.getId(), e);
+                        return Mono.just(aggregateRoot);
+                    });
+        } catch (IOException e) {
+            LOGGER.warn("Could not serialize aggregate root field data for {}", aggregateRoot.getId(), e);
+            return Mono.just(aggregateRoot);
+        }
+    }
+
+    private Map<String, Object> readFieldData(Snapshot<?> snapshot) {
+        try {
+            return jsonMapper.readValue(snapshot.fieldData(), Argument.mapOf(String.class, Object.class));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not deserialize aggregate root field data from snapshot", e);
+        }
+    }
+}
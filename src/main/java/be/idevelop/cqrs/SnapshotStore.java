@@ -0,0 +1,10 @@
+package be.idevelop.cqrs;
+
+import reactor.core.publisher.Mono;
+
+public interface SnapshotStore {
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Snapshot<I>> retrieveSnapshot(I objectId, Class<A> clazz);
+
+    <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveSnapshot(Snapshot<I> snapshot, Class<A> clazz);
+}
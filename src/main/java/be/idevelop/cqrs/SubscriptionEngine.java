@@ -0,0 +1,240 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.BeanProvider;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a catch-up subscription on the global event log for every {@link Projection}. A subscription reads the log in
+ * batches from its checkpoint, partitions every batch by object id over a shared pool of workers, and saves its
+ * checkpoint once all partitions handled the batch. Once it has caught up it keeps polling the log for new events, so
+ * there is no separate switch from catch-up to live processing.
+ * <p>
+ * The partitions that fail are retried, like the outbox does. Once they failed the configured number of attempts, their
+ * events are dead-lettered: they are logged as an error and the subscription moves on, so a single poison event doesn't
+ * stop the projection.
+ */
+@Context
+final class SubscriptionEngine implements Projections {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionEngine.class);
+
+    private static final String CHECKPOINT_PREFIX = "projection-";
+
+    private final BeanProvider<EventRepository> eventRepository;
+
+    private final BeanProvider<CheckpointStore> checkpointStore;
+
+    private final int batchSize;
+
+    private final int partitions;
+
+    private final long pollIntervalMillis;
+
+    private final long retryBackoffMillis;
+
+    private final int maxAttempts;
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private final ExecutorService workers;
+
+    private final List<Subscription> subscriptions;
+
+    private volatile boolean running = true;
+
+    @Inject
+    SubscriptionEngine(List<Projection> projections,
+                       BeanProvider<EventRepository> eventRepository,
+                       BeanProvider<CheckpointStore> checkpointStore,
+                       @Value("${cqrs.subscriptions.enabled:false}") boolean enabled,
+                       @Value("${cqrs.subscriptions.batchSize:1024}") int batchSize,
+                       @Value("${cqrs.subscriptions.workers:0}") int workers,
+                       @Value("${cqrs.subscriptions.pollInterval:100ms}") Duration pollInterval,
+                       @Value("${cqrs.subscriptions.retryBackoff:1s}") Duration retryBackoff,
+                       @Value("${cqrs.subscriptions.maxAttempts:10}") int maxAttempts) {
+        this.eventRepository = eventRepository;
+        this.checkpointStore = checkpointStore;
+        this.batchSize = batchSize;
+        this.partitions = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.pollIntervalMillis = pollInterval.toMillis();
+        this.retryBackoffMillis = retryBackoff.toMillis();
+        this.maxAttempts = Math.max(1, maxAttempts);
+
+        if (enabled && !projections.isEmpty()) {
+            var counter = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(partitions, r -> {
+                var thread = new Thread(r, "cqrs-subscription-worker-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.subscriptions = projections.stream().map(Subscription::new).toList();
+            this.subscriptions.forEach(subscription -> subscription.reader.start());
+        } else {
+            this.workers = null;
+            this.subscriptions = List.of();
+        }
+    }
+
+    @Override
+    public void rebuild(String name) {
+        subscription(name).orElseThrow(() -> new IllegalArgumentException("Unknown projection " + name)).rebuildRequested = true;
+    }
+
+    @Override
+    public Optional<Long> position(String name) {
+        return subscription(name).map(subscription -> subscription.position);
+    }
+
+    /**
+     * Number of events that were dead-lettered after failing every attempt to handle them, over all projections.
+     */
+    long deadLettered() {
+        return deadLettered.get();
+    }
+
+    private Optional<Subscription> subscription(String name) {
+        return subscriptions.stream().filter(subscription -> subscription.projection.name().equals(name)).findFirst();
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        subscriptions.forEach(subscription -> subscription.reader.interrupt());
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    private final class Subscription {
+
+        private final Projection projection;
+
+        private final String checkpoint;
+
+        private final Thread reader;
+
+        private volatile long position;
+
+        private volatile boolean rebuildRequested;
+
+        private Subscription(Projection projection) {
+            this.projection = projection;
+            this.checkpoint = CHECKPOINT_PREFIX + projection.name();
+            this.reader = new Thread(this::read, "cqrs-subscription-" + projection.name());
+            this.reader.setDaemon(true);
+        }
+
+        private void read() {
+            position = checkpointStore.get().loadCheckpoint(checkpoint).blockOptional().orElse(0L);
+            while (running) {
+                try {
+                    if (rebuildRequested) {
+                        rebuildRequested = false;
+                        projection.reset();
+                        position = 0;
+                        checkpointStore.get().saveCheckpoint(checkpoint, position).block();
+                    }
+                    var batch = eventRepository.get().retrieveAllEventMessages(position, batchSize).collectList().block();
+                    if (batch == null || batch.isEmpty()) {
+                        Thread.sleep(pollIntervalMillis);
+                        continue;
+                    }
+                    var pending = partition(batch);
+                    for (var attempt = 1; ; attempt++) {
+                        pending = handle(pending);
+                        if (pending.isEmpty()) {
+                            break;
+                        }
+                        if (attempt >= maxAttempts) {
+                            deadLetter(pending);
+                            break;
+                        }
+                        LOGGER.warn("Projection {} failed handling {} partitions from position {}, attempt {} of {}", projection.name(), pending.size(), position, attempt, maxAttempts);
+                        Thread.sleep(retryBackoffMillis);
+                    }
+                    position = batch.get(batch.size() - 1).nextPosition();
+                    checkpointStore.get().saveCheckpoint(checkpoint, position).block();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (UnsupportedOperationException e) {
+                    LOGGER.error("Projection {} needs an event repository with a global event log", projection.name(), e);
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Projection {} failed handling events from position {}, retrying", projection.name(), position, e);
+                    try {
+                        Thread.sleep(retryBackoffMillis);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<List<EventMessage<?, ? extends Record>>> partition(List<GlobalEventMessage> batch) {
+            var partitioned = (List<EventMessage<?, ? extends Record>>[]) new List[partitions];
+            for (var globalEventMessage : batch) {
+                var eventMessage = globalEventMessage.eventMessage();
+                var partition = Math.floorMod(eventMessage.objectId().hashCode(), partitions);
+                if (partitioned[partition] == null) {
+                    partitioned[partition] = new ArrayList<>();
+                }
+                partitioned[partition].add(eventMessage);
+            }
+            var nonEmpty = new ArrayList<List<EventMessage<?, ? extends Record>>>(partitions);
+            for (var eventMessages : partitioned) {
+                if (eventMessages != null) {
+                    nonEmpty.add(eventMessages);
+                }
+            }
+            return nonEmpty;
+        }
+
+        /**
+         * @return the partitions the projection failed to handle
+         */
+        private List<List<EventMessage<?, ? extends Record>>> handle(List<List<EventMessage<?, ? extends Record>>> partitioned) {
+            var handled = new ArrayList<CompletableFuture<Void>>(partitioned.size());
+            for (var eventMessages : partitioned) {
+                handled.add(CompletableFuture.runAsync(() -> projection.handle(eventMessages), workers));
+            }
+            var failed = new ArrayList<List<EventMessage<?, ? extends Record>>>();
+            for (var i = 0; i < handled.size(); i++) {
+                try {
+                    handled.get(i).join();
+                } catch (CompletionException e) {
+                    LOGGER.debug("Projection {} failed handling {} events", projection.name(), partitioned.get(i).size(), e.getCause());
+                    failed.add(partitioned.get(i));
+                }
+            }
+            return failed;
+        }
+
+        private void deadLetter(List<List<EventMessage<?, ? extends Record>>> failed) {
+            for (var eventMessages : failed) {
+                var objectIds = eventMessages.stream().map(EventMessage::objectId).distinct().toList();
+                LOGGER.error("Projection {} dead-lettered {} events of {}, they failed {} attempts to handle them",
+                        projection.name(), eventMessages.size(), objectIds, maxAttempts);
+                deadLettered.addAndGet(eventMessages.size());
+            }
+        }
+    }
+}
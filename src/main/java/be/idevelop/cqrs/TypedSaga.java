@@ -0,0 +1,35 @@
+package be.idevelop.cqrs;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Saga keeping its state in a {@link io.micronaut.serde.annotation.Serdeable} record instead of a field data map. The
+ * state is stored with the compact binary {@link SagaStateCodec}, skipping the boxing and JSON encoding of the field
+ * data map, which remains the way to go for the other sagas.
+ *
+ * @param <STATE> the record holding the state of the saga
+ */
+public abstract class TypedSaga<THIS extends TypedSaga<THIS, STATE>, STATE extends Record> extends Saga<THIS> {
+
+    protected TypedSaga(SagaId<THIS> sagaId, Instant created, SagaState... states) {
+        super(sagaId, created, states);
+    }
+
+    protected TypedSaga(SagaId<THIS> sagaId, Instant created, TimeoutStrategy timeoutStrategy, SagaState... states) {
+        super(sagaId, created, timeoutStrategy, states);
+    }
+
+    protected abstract STATE getState();
+
+    protected abstract void hydrateState(STATE state);
+
+    @Override
+    protected final Map<String, Object> getFieldData() {
+        return Map.of();
+    }
+
+    @Override
+    protected final void hydrateFieldData(Map<String, Object> fieldData) {
+    }
+}
@@ -0,0 +1,67 @@
+package be.idevelop.cqrs
+
+import spock.lang.Specification
+
+class AggregateRootCacheTest extends Specification {
+
+    def 'a cached aggregate root is taken out of the cache until it is put back'() {
+        given:
+        def cache = new AggregateRootCache(10)
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+        cache.put(aggregateRoot)
+
+        when:
+        def first = cache.take(aggregateRoot.id, TestAggregateRoot)
+        def second = cache.take(aggregateRoot.id, TestAggregateRoot)
+
+        then:
+        first.is(aggregateRoot)
+        second == null
+        cache.statistics() == new CacheStatistics(1, 1, 0, 0)
+    }
+
+    def 'the least recently used aggregate root is evicted once the cache is full'() {
+        given:
+        def cache = new AggregateRootCache(2)
+        def aggregateRoots = (1..3).collect { new TestAggregateRoot(new TestId()) }
+
+        when:
+        aggregateRoots.each { cache.put(it) }
+
+        then:
+        cache.take(aggregateRoots[0].id, TestAggregateRoot) == null
+        cache.take(aggregateRoots[1].id, TestAggregateRoot).is(aggregateRoots[1])
+        cache.take(aggregateRoots[2].id, TestAggregateRoot).is(aggregateRoots[2])
+        cache.statistics().evictions() == 1
+    }
+
+    def 'an older version never replaces a newer cached version'() {
+        given:
+        def cache = new AggregateRootCache(10)
+        def id = new TestId()
+        def newer = new TestAggregateRoot(id)
+        newer.version = 5
+        def older = new TestAggregateRoot(id)
+        older.version = 3
+
+        when:
+        cache.put(newer)
+        cache.put(older)
+
+        then:
+        cache.take(id, TestAggregateRoot).is(newer)
+    }
+
+    def 'a disabled cache never caches aggregate roots'() {
+        given:
+        def cache = new AggregateRootCache(0)
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+
+        when:
+        cache.put(aggregateRoot)
+
+        then:
+        cache.take(aggregateRoot.id, TestAggregateRoot) == null
+        cache.statistics() == new CacheStatistics(0, 0, 0, 0)
+    }
+}
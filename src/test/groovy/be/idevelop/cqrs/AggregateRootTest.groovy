@@ -0,0 +1,80 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.ApplicationContext
+import io.micronaut.core.order.Ordered
+import spock.lang.Specification
+
+import java.time.Instant
+
+class AggregateRootTest extends Specification {
+
+    def 'verify that an applied event is dispatched to its handlers in order and updates the version inline'() {
+        given:
+        def calls = []
+        def aggregateRoot = aggregateRoot(
+                new TestHandler(2, { root, event -> calls << "second@${root.version}".toString() }),
+                new TestHandler(1, { root, event -> calls << "first@${root.version}".toString(); root.created = true }))
+
+        when:
+        aggregateRoot.init()
+
+        then:
+        calls == ['first@-1', 'second@-1']
+        aggregateRoot.created
+        aggregateRoot.version == 0
+        aggregateRoot.eventMessages().size() == 1
+
+        when:
+        aggregateRoot.validate()
+
+        then:
+        calls.drop(2) == ['first@0', 'second@0']
+        aggregateRoot.version == 1
+    }
+
+    def 'verify that a failing handler leaves the version untouched'() {
+        given:
+        def aggregateRoot = aggregateRoot(
+                new TestHandler(1, { root, event -> root.validated = true }),
+                new TestHandler(2, { root, event -> throw new IllegalStateException('failing handler') }))
+
+        when:
+        aggregateRoot.replay(new EventMessage<>(new EventMeta<>(aggregateRoot.id, 0, Instant.now()), new TestValidatedEvent()))
+
+        then:
+        noExceptionThrown()
+        aggregateRoot.validated
+        aggregateRoot.version == -1
+    }
+
+    private TestAggregateRoot aggregateRoot(TestHandler... handlers) {
+        def applicationContext = Stub(ApplicationContext) {
+            getBeansOfType(CqrsEventHandler, _) >> (handlers as List)
+        }
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+        aggregateRoot.setEventHandlerRegistry(new EventHandlerRegistry(applicationContext))
+        aggregateRoot
+    }
+
+    private static class TestHandler implements CqrsEventHandler<TestId, TestAggregateRoot, Record>, Ordered {
+
+        private final int order
+
+        private final Closure action
+
+        TestHandler(int order, Closure action) {
+            this.order = order
+            this.action = action
+        }
+
+        @Override
+        void onEvent(TestAggregateRoot aggregateRoot, Record event) {
+            action.call(aggregateRoot, event)
+        }
+
+        @Override
+        int getOrder() {
+            order
+        }
+    }
+}
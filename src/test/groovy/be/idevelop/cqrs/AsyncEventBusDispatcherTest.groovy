@@ -0,0 +1,135 @@
+package be.idevelop.cqrs
+
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class AsyncEventBusDispatcherTest extends Specification {
+
+    def dispatcher = new AsyncEventBusDispatcher(new NoopCqrsMetrics(), true, 16, 3, Duration.ofMillis(1), Duration.ofSeconds(5))
+
+    def cleanup() {
+        dispatcher.stop()
+    }
+
+    def 'verify that events are handled in order and a failing handler does not affect other handlers'() {
+        given:
+        def testId = new TestId()
+        def handled = Collections.synchronizedList([])
+        def done = new CountDownLatch(10)
+        def attempts = new AtomicInteger()
+        CqrsEventBusHandler failing = new CqrsEventBusHandler() {
+            @Override
+            void onEvent(Object event, EventMeta meta) {
+                attempts.incrementAndGet()
+                throw new IllegalStateException('failing handler')
+            }
+        }
+        CqrsEventBusHandler recording = new CqrsEventBusHandler() {
+            @Override
+            void onEvent(Object event, EventMeta meta) {
+                handled << meta.version()
+                done.countDown()
+            }
+        }
+
+        when:
+        for (version in 0..<10) {
+            def meta = new EventMeta<>(testId, version, Instant.now())
+            dispatcher.dispatch(failing, new TestValidatedEvent(), meta)
+            dispatcher.dispatch(recording, new TestValidatedEvent(), meta)
+        }
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        handled == (0..<10).toList()
+        dispatcher.lanes() == 2
+    }
+
+    def 'verify that handler instances of the same class share their lane'() {
+        given:
+        def done = new CountDownLatch(10)
+
+        when:
+        10.times { dispatcher.dispatch(new CountingHandler(done), new TestValidatedEvent(), new EventMeta<>(new TestId(), it, Instant.now())) }
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        dispatcher.lanes() == 1
+    }
+
+    def 'verify that handling an event is timed as the event handlers stage'() {
+        given:
+        def stages = Collections.synchronizedList([])
+        def metrics = [time: { stage, mono, aggregateRootClass, messageClass ->
+            stages << [stage, aggregateRootClass, messageClass]
+            mono
+        }] as CqrsMetrics
+        def timedDispatcher = new AsyncEventBusDispatcher(metrics, true, 16, 3, Duration.ofMillis(1), Duration.ofSeconds(5))
+        def done = new CountDownLatch(1)
+
+        when:
+        timedDispatcher.dispatch(new CountingHandler(done), new TestValidatedEvent(), new EventMeta<>(new TestId(), 0, Instant.now()))
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        stages == [[CqrsMetrics.Stage.EVENT_HANDLERS, TestAggregateRoot, TestValidatedEvent]]
+
+        cleanup:
+        timedDispatcher.stop()
+    }
+
+    def 'verify that a failing event is retried'() {
+        given:
+        def done = new CountDownLatch(1)
+        def attempts = new AtomicInteger()
+        CqrsEventBusHandler flaky = { event, meta ->
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException('flaky handler')
+            }
+            done.countDown()
+        } as CqrsEventBusHandler
+
+        when:
+        dispatcher.dispatch(flaky, new TestValidatedEvent(), new EventMeta<>(new TestId(), 0, Instant.now()))
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        attempts.get() == 3
+    }
+
+    def 'verify that stopping the dispatcher drains the events it already accepted'() {
+        given:
+        def handled = new AtomicInteger()
+        CqrsEventBusHandler slow = { event, meta ->
+            TimeUnit.MILLISECONDS.sleep(10)
+            handled.incrementAndGet()
+        } as CqrsEventBusHandler
+        10.times { dispatcher.dispatch(slow, new TestValidatedEvent(), new EventMeta<>(new TestId(), it, Instant.now())) }
+
+        when:
+        dispatcher.stop()
+
+        then:
+        handled.get() == 10
+        dispatcher.pending() == 0
+    }
+
+    private static class CountingHandler implements CqrsEventBusHandler<TestId, EventMeta<TestId>, TestValidatedEvent> {
+
+        private final CountDownLatch done
+
+        private CountingHandler(CountDownLatch done) {
+            this.done = done
+        }
+
+        @Override
+        void onEvent(TestValidatedEvent event, EventMeta<TestId> metadata) {
+            done.countDown()
+        }
+    }
+}
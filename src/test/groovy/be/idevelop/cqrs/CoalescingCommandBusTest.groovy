@@ -0,0 +1,114 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.annotation.Property
+import io.micronaut.test.annotation.MockBean
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@MicronautTest
+@Property(name = "cqrs.commandQueue.coalesce", value = "true")
+class CoalescingCommandBusTest extends Specification {
+
+    @Inject
+    CommandBus commandBus
+
+    @Inject
+    CqrsScheduler cqrsScheduler
+
+    @Inject
+    EventRepository eventRepository
+
+    def 'verify that coalesced commands share a single load and save and each get their result'() {
+        given:
+        def objectId = new TestId()
+        def commands = (0..<3).collect { new ValidateTestObjectCommand(objectId) }
+
+        when:
+        def results = publishWhileShardIsBusy(commands)
+
+        then:
+        results*.success == [true, true, true]
+        CountingEventRepository.retrieves(objectId) == 1
+        CountingEventRepository.saves(objectId) == 1
+        eventRepository.retrieveEventMessages(objectId, TestAggregateRoot).collectList().block().size() == 3
+    }
+
+    def 'verify that coalesced commands are processed one by one when one of them fails'() {
+        given:
+        def objectId = new TestId()
+        def commands = [new ValidateTestObjectCommand(objectId), new FailingTestCommand(objectId), new ValidateTestObjectCommand(objectId)]
+
+        when:
+        def results = publishWhileShardIsBusy(commands)
+
+        then:
+        results*.success == [true, false, true]
+        results[1].error instanceof IllegalStateException
+        CountingEventRepository.saves(objectId) == 2
+        eventRepository.retrieveEventMessages(objectId, TestAggregateRoot).collectList().block().size() == 2
+    }
+
+    /**
+     * Queue the commands behind a busy shard, so the drain takes them together once the shard is released.
+     */
+    private List<Map> publishWhileShardIsBusy(List<Command<TestId>> commands) {
+        def release = new CountDownLatch(1)
+        cqrsScheduler.shard(commands[0].objectId()).scheduler().schedule { release.await() }
+        def results = commands.collect { command ->
+            commandBus.publishAndWait(command)
+                    .map { [success: true, error: null] }
+                    .onErrorResume { e -> Mono.just([success: false, error: e]) }
+                    .toFuture()
+        }
+        release.countDown()
+        results.collect { it.get(5, TimeUnit.SECONDS) }
+    }
+
+    @MockBean(EventRepository)
+    EventRepository eventRepository() {
+        new CountingEventRepository()
+    }
+
+    static class CountingEventRepository implements EventRepository {
+
+        static final ConcurrentMap<Id<?, ?>, AtomicInteger> RETRIEVES = new ConcurrentHashMap<>()
+
+        static final ConcurrentMap<Id<?, ?>, AtomicInteger> SAVES = new ConcurrentHashMap<>()
+
+        final ConcurrentMap<Id<?, ?>, List> eventMessages = new ConcurrentHashMap<>()
+
+        static int retrieves(Id<?, ?> objectId) {
+            RETRIEVES.getOrDefault(objectId, new AtomicInteger()).get()
+        }
+
+        static int saves(Id<?, ?> objectId) {
+            SAVES.getOrDefault(objectId, new AtomicInteger()).get()
+        }
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
+            RETRIEVES.computeIfAbsent(objectId, id -> new AtomicInteger()).incrementAndGet()
+            def events = eventMessages.get(objectId)
+            events == null ? Flux.empty() : Flux.fromIterable(new ArrayList<>(events))
+        }
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz) {
+            if (!eventMessages.isEmpty()) {
+                def objectId = eventMessages.get(0).objectId()
+                SAVES.computeIfAbsent(objectId, id -> new AtomicInteger()).incrementAndGet()
+                this.eventMessages.computeIfAbsent(objectId, id -> Collections.synchronizedList(new ArrayList<>())).addAll(eventMessages)
+            }
+            Mono.just(true)
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package be.idevelop.cqrs
+
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class CommandQueueTest extends Specification {
+
+    def 'verify that a full queue rejects new commands with the reject policy'() {
+        given:
+        def shard = blockedShard(OverflowPolicy.REJECT)
+        def queue = shard.commandQueue()
+        queue.offer(entry(new TestCommand(new TestId()), []))
+        queue.offer(entry(new TestCommand(new TestId()), []))
+
+        when:
+        queue.offer(entry(new TestCommand(new TestId()), []))
+
+        then:
+        thrown(CommandRejectedException)
+        queue.size() == 2
+    }
+
+    def 'verify that a full queue drops the oldest command with the drop oldest policy'() {
+        given:
+        def shard = blockedShard(OverflowPolicy.DROP_OLDEST)
+        def queue = shard.commandQueue()
+        def rejected = []
+        def oldest = new TestCommand(new TestId())
+        queue.offer(entry(oldest, rejected))
+        queue.offer(entry(new TestCommand(new TestId()), rejected))
+
+        when:
+        queue.offer(entry(new TestCommand(new TestId()), rejected))
+
+        then:
+        rejected == [oldest]
+        queue.size() == 2
+    }
+
+    def 'verify that commands in flight count toward the capacity of the queue'() {
+        given:
+        def shard = blockedShard(OverflowPolicy.REJECT, new CountDownLatch(0))
+        def queue = shard.commandQueue()
+        def completions = Collections.synchronizedList([])
+        2.times {
+            queue.offer([
+                    command: { new TestCommand(new TestId()) },
+                    run    : { List<CommandQueue.Entry> entries, Runnable done -> completions << done },
+                    reject : { CommandRejectedException e -> }
+            ] as CommandQueue.Entry)
+        }
+        new PollingConditions(timeout: 5).eventually {
+            assert completions.size() == 2
+        }
+
+        when:
+        queue.offer(entry(new TestCommand(new TestId()), []))
+
+        then:
+        thrown(CommandRejectedException)
+
+        when:
+        completions[0].run()
+        queue.offer(entry(new TestCommand(new TestId()), []))
+
+        then:
+        noExceptionThrown()
+    }
+
+    def 'verify that the mailboxes of all aggregate roots share the capacity of the queue'() {
+        given:
+        def mailboxScheduler = new MailboxScheduler('queue', 0, 2, OverflowPolicy.REJECT, false, Duration.ofMinutes(1))
+        def completions = Collections.synchronizedList([])
+        2.times {
+            def command = new TestCommand(new TestId())
+            mailboxScheduler.mailbox(command.testId).commandQueue().offer([
+                    command: { command },
+                    run    : { List<CommandQueue.Entry> entries, Runnable done -> completions << done },
+                    reject : { CommandRejectedException e -> }
+            ] as CommandQueue.Entry)
+        }
+        new PollingConditions(timeout: 5).eventually {
+            assert completions.size() == 2
+        }
+        def command = new TestCommand(new TestId())
+        def queue = mailboxScheduler.mailbox(command.testId).commandQueue()
+
+        when:
+        queue.offer(entry(command, []))
+
+        then:
+        thrown(CommandRejectedException)
+
+        when:
+        completions[0].run()
+        queue.offer(entry(command, []))
+
+        then:
+        noExceptionThrown()
+
+        cleanup:
+        mailboxScheduler.shutdown()
+    }
+
+    def 'verify that a full queue rejects commands published from a non-blocking thread with the block policy'() {
+        given:
+        def shard = blockedShard(OverflowPolicy.BLOCK)
+        def queue = shard.commandQueue()
+        queue.offer(entry(new TestCommand(new TestId()), []))
+        queue.offer(entry(new TestCommand(new TestId()), []))
+
+        when:
+        Mono.fromRunnable { queue.offer(entry(new TestCommand(new TestId()), [])) }
+                .subscribeOn(Schedulers.parallel())
+                .block(Duration.ofSeconds(5))
+
+        then:
+        thrown(CommandRejectedException)
+        queue.size() == 2
+    }
+
+    def 'verify that queued commands run on the shard once it is free'() {
+        given:
+        def release = new CountDownLatch(1)
+        def shard = blockedShard(OverflowPolicy.BLOCK, release)
+        def ran = new CountDownLatch(2)
+        def queue = shard.commandQueue()
+        queue.offer(entry(new TestCommand(new TestId()), [], ran))
+        queue.offer(entry(new TestCommand(new TestId()), [], ran))
+
+        when:
+        release.countDown()
+
+        then:
+        ran.await(5, TimeUnit.SECONDS)
+        queue.size() == 0
+    }
+
+    def 'verify that queued commands for the same aggregate root are coalesced'() {
+        given:
+        def release = new CountDownLatch(1)
+        def shard = blockedShard(OverflowPolicy.BLOCK, release, 0, true)
+        def ran = new CountDownLatch(2)
+        def coalesced = Collections.synchronizedList([])
+        def objectId = new TestId()
+        def queue = shard.commandQueue()
+        def first = new TestCommand(objectId)
+        def other = new TestCommand(new TestId())
+        def second = new TestCommand(objectId)
+        [first, other, second].each { command ->
+            queue.offer([
+                    command: { command },
+                    run    : { List<CommandQueue.Entry> entries, Runnable done ->
+                        coalesced << [command, entries*.command()]
+                        ran.countDown()
+                        done.run()
+                    },
+                    reject : { CommandRejectedException e -> }
+            ] as CommandQueue.Entry)
+        }
+
+        when:
+        release.countDown()
+
+        then:
+        ran.await(5, TimeUnit.SECONDS)
+        coalesced == [[first, [second]], [other, []]]
+    }
+
+    def 'verify that a command only starts once the previous command for its aggregate root completed'() {
+        given:
+        def shard = blockedShard(OverflowPolicy.BLOCK, new CountDownLatch(0), 0)
+        def queue = shard.commandQueue()
+        def objectId = new TestId()
+        def started = Collections.synchronizedList([])
+        def completions = Collections.synchronizedList([])
+        def commands = [new TestCommand(objectId), new TestCommand(new TestId()), new TestCommand(objectId)]
+
+        when: 'the first command completes asynchronously, after the drain moved on'
+        commands.each { command ->
+            queue.offer([
+                    command: { command },
+                    run    : { List<CommandQueue.Entry> entries, Runnable done ->
+                        started << command
+                        completions << done
+                    },
+                    reject : { CommandRejectedException e -> }
+            ] as CommandQueue.Entry)
+        }
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert started == commands.take(2)
+            assert queue.size() == 1
+        }
+
+        when:
+        completions[0].run()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert started == commands
+            assert queue.size() == 0
+        }
+        !queue.isIdle()
+
+        when:
+        completions.drop(1)*.run()
+
+        then:
+        queue.isIdle()
+    }
+
+    private static CqrsScheduler.Shard blockedShard(OverflowPolicy overflowPolicy, CountDownLatch release = new CountDownLatch(1), int capacity = 2, boolean coalesce = false) {
+        def scheduler = new CqrsScheduler('queue', 1, 0, capacity, overflowPolicy, coalesce, CqrsScheduler.Mode.SHARDED, Duration.ofMinutes(1))
+        def shard = scheduler.shard(new TestId())
+        shard.scheduler().schedule { release.await() }
+        return shard
+    }
+
+    private static CommandQueue.Entry entry(Command command, List rejected, CountDownLatch ran = new CountDownLatch(1)) {
+        return [
+                command: { command },
+                run    : { List<CommandQueue.Entry> entries, Runnable done ->
+                    ran.countDown()
+                    done.run()
+                },
+                reject : { CommandRejectedException e -> rejected << e.command }
+        ] as CommandQueue.Entry
+    }
+}
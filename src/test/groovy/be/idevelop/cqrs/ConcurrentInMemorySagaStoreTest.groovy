@@ -0,0 +1,354 @@
+package be.idevelop.cqrs
+
+import io.micronaut.json.JsonMapper
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+import reactor.util.context.Context
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConcurrentInMemorySagaStoreTest extends Specification {
+
+    def store = new ConcurrentInMemorySagaStore(Mock(JsonMapper), 100)
+
+    def 'sagas are found through their linked entities and saga class'() {
+        given:
+        def testId = new TestId()
+        def sagaData = sagaData(testId)
+
+        when:
+        store.doStore(sagaData)
+
+        then:
+        store.doFindAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block() == [sagaData]
+        store.doFindAssociatedSagas(new TestId(), CreateNewTestObjectSaga).collectList().block() == []
+    }
+
+    def 'storing a saga again replaces it and its index entries'() {
+        given:
+        def first = new TestId()
+        def second = new TestId()
+        def sagaData = sagaData(first)
+        def updated = new AbstractSagaStore.SagaData(sagaData.id(), sagaData.sagaClassName(), sagaData.created(), SagaState.START_STATE, [second] as Set, Instant.MAX, new byte[0])
+
+        when:
+        store.doStore(sagaData)
+        store.doStore(updated)
+
+        then:
+        store.size() == 1
+        store.doFindAssociatedSagas(first, CreateNewTestObjectSaga).collectList().block() == []
+        store.doFindAssociatedSagas(second, CreateNewTestObjectSaga).collectList().block() == [updated]
+    }
+
+    def 'deleting a saga removes it from the index'() {
+        given:
+        def testId = new TestId()
+        def sagaData = sagaData(testId)
+        store.doStore(sagaData)
+
+        when:
+        store.doDeleteSaga(sagaData.id())
+
+        then:
+        store.size() == 0
+        store.doFindAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block() == []
+    }
+
+    def 'scheduled timeouts are found in order and follow the stored sagas'() {
+        given:
+        def now = Instant.now()
+        def later = withTimeout(sagaData(new TestId()), now.plusSeconds(20))
+        def sooner = withTimeout(sagaData(new TestId()), now.plusSeconds(10))
+        store.doStore(later)
+        store.doStore(sooner)
+        store.doStore(sagaData(new TestId()))
+
+        when:
+        store.doStore(withTimeout(later, now.plusSeconds(30)))
+        store.doDeleteSaga(sooner.id())
+
+        then:
+        store.findScheduledTimeouts(Instant.MAX).collectList().block() == [new SagaTimeout(later.id(), now.plusSeconds(30))]
+        store.findScheduledTimeouts(now.plusSeconds(30)).collectList().block() == []
+    }
+
+    def 'with a write-behind, writes are coalesced per saga, visible while queued and flushed in batches'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) { readValue(*_) >> [someField: true] }
+        def writeBehindStore = new ConcurrentInMemorySagaStore(jsonMapper, 100, 3, Duration.ofMinutes(1))
+        def testId = new TestId()
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+        saga.linkEntity(testId)
+
+        when:
+        def first = writeBehindStore.storeSagaAsync(saga).toFuture()
+        def second = writeBehindStore.storeSagaAsync(saga).toFuture()
+
+        then:
+        writeBehindStore.size() == 0
+        !first.isDone()
+        writeBehindStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block()*.getSagaId() == [saga.getSagaId()]
+
+        when:
+        2.times { writeBehindStore.storeSagaAsync(new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())) }
+        second.get(5, TimeUnit.SECONDS)
+
+        then:
+        first.isDone()
+        writeBehindStore.size() == 3
+
+        cleanup:
+        writeBehindStore.close()
+    }
+
+    def 'with a write-behind, writes for other sagas wait for a full queue without blocking their caller'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) { readValue(*_) >> [someField: true] }
+        def writing = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def blockingStore = new ConcurrentInMemorySagaStore(jsonMapper, new SagaStateCodec(jsonMapper), 100, 1, 1, Duration.ofMinutes(1)) {
+            @Override
+            protected void doWriteBatch(List<AbstractSagaStore.SagaWrite> writes) {
+                writing.countDown()
+                release.await()
+                super.doWriteBatch(writes)
+            }
+        }
+        def sagas = (0..<3).collect { new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now()) }
+
+        when: 'the first saga is being written and the second one fills the queue'
+        blockingStore.storeSagaAsync(sagas[0]).toFuture()
+        writing.await(5, TimeUnit.SECONDS)
+        blockingStore.storeSagaAsync(sagas[1]).toFuture()
+        def waiting = blockingStore.storeSagaAsync(sagas[2]).toFuture()
+
+        then: 'the waiting write is found but not written'
+        !waiting.done
+        blockingStore.findSaga(sagas[2].getSagaId()).block(Duration.ofSeconds(5)) != null
+
+        when:
+        release.countDown()
+        waiting.get(5, TimeUnit.SECONDS)
+
+        then:
+        blockingStore.size() == 3
+
+        cleanup:
+        release.countDown()
+        blockingStore.close()
+    }
+
+    def 'with a write-behind, a write completes on the shard of its caller'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) { readValue(*_) >> [someField: true] }
+        def writeBehindStore = new ConcurrentInMemorySagaStore(jsonMapper, 100, 1, Duration.ofMinutes(1))
+        def shard = Schedulers.newSingle('test-shard')
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+
+        when:
+        def thread = writeBehindStore.storeSagaAsync(saga)
+                .then(Mono.fromCallable { Thread.currentThread().name })
+                .contextWrite(Context.of(CqrsScheduler.SHARD_CONTEXT_KEY, shard))
+                .block(Duration.ofSeconds(5))
+
+        then:
+        thread.startsWith('test-shard')
+
+        cleanup:
+        shard.dispose()
+        writeBehindStore.close()
+    }
+
+    def 'a stored saga is written as a delta of its changes and not written at all without changes'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) {
+            writeValueAsBytes(_) >> { Object value -> value.toString().bytes }
+            readValue(*_) >> [someField: false]
+        }
+        def writes = []
+        def recordingStore = new ConcurrentInMemorySagaStore(jsonMapper, 100) {
+            @Override
+            protected void doStore(AbstractSagaStore.SagaData sagaData) {
+                writes << sagaData
+                super.doStore(sagaData)
+            }
+
+            @Override
+            protected boolean doUpdate(AbstractSagaStore.SagaDelta delta) {
+                writes << delta
+                super.doUpdate(delta)
+            }
+        }
+        def first = new TestId()
+        def second = new TestId()
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+        saga.linkEntity(first)
+        recordingStore.storeSaga(saga)
+
+        when:
+        def rebuilt = recordingStore.findSaga(saga.getSagaId()).block()
+        recordingStore.storeSaga(rebuilt)
+
+        then:
+        writes.size() == 1
+        writes[0] instanceof AbstractSagaStore.SagaData
+
+        when:
+        rebuilt.linkEntity(second)
+        recordingStore.storeSaga(rebuilt)
+
+        then:
+        writes.size() == 2
+        writes[1].linkedEntities() == [second] as Set
+        writes[1].sagaState() == null
+        writes[1].fieldData() == null
+        recordingStore.doFindAssociatedSagas(second, CreateNewTestObjectSaga).collectList().block()*.id() == [saga.getSagaId()]
+    }
+
+    def 'the changes of a saga whose write failed are written with its next write'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) {
+            writeValueAsBytes(_) >> { Object value -> value.toString().bytes }
+            readValue(*_) >> [someField: false]
+        }
+        def failUpdate = new AtomicBoolean(true)
+        def failingStore = new ConcurrentInMemorySagaStore(jsonMapper, 100) {
+            @Override
+            protected boolean doUpdate(AbstractSagaStore.SagaDelta delta) {
+                if (failUpdate.getAndSet(false)) {
+                    throw new IllegalStateException('failing store')
+                }
+                super.doUpdate(delta)
+            }
+        }
+        def first = new TestId()
+        def second = new TestId()
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+        saga.linkEntity(first)
+        failingStore.storeSaga(saga)
+
+        when:
+        saga.linkEntity(second)
+        failingStore.storeSaga(saga)
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        failingStore.storeSaga(saga)
+
+        then:
+        failingStore.doFindAssociatedSagas(second, CreateNewTestObjectSaga).collectList().block()*.id() == [saga.getSagaId()]
+    }
+
+    def 'with a write-behind, the next write of a saga whose write failed is a full write'() {
+        given:
+        def jsonMapper = Stub(JsonMapper) {
+            writeValueAsBytes(_) >> { Object value -> value.toString().bytes }
+            readValue(*_) >> [someField: false]
+        }
+        def failBatch = new AtomicBoolean()
+        def deltas = []
+        def failingStore = new ConcurrentInMemorySagaStore(jsonMapper, new SagaStateCodec(jsonMapper), 100, 1, 10, Duration.ofMinutes(1)) {
+            @Override
+            protected void doWriteBatch(List<AbstractSagaStore.SagaWrite> writes) {
+                deltas.addAll(writes*.delta())
+                if (failBatch.getAndSet(false)) {
+                    throw new IllegalStateException('failing store')
+                }
+                super.doWriteBatch(writes)
+            }
+        }
+        def second = new TestId()
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+        saga.linkEntity(new TestId())
+        failingStore.storeSagaAsync(saga).block(Duration.ofSeconds(5))
+
+        when:
+        failBatch.set(true)
+        saga.linkEntity(second)
+        failingStore.storeSagaAsync(saga).block(Duration.ofSeconds(5))
+
+        then:
+        thrown(IllegalStateException)
+
+        when: 'the saga is stored again without changes'
+        failingStore.storeSagaAsync(saga).block(Duration.ofSeconds(5))
+
+        then:
+        deltas.size() == 3
+        deltas[1] != null
+        deltas[2] == null
+        failingStore.doFindAssociatedSagas(second, CreateNewTestObjectSaga).collectList().block()*.id() == [saga.getSagaId()]
+
+        cleanup:
+        failingStore.close()
+    }
+
+    def 'storing more sagas than the configured maximum fails'() {
+        given:
+        def smallStore = new ConcurrentInMemorySagaStore(Mock(JsonMapper), 1)
+        smallStore.doStore(sagaData(new TestId()))
+
+        when:
+        smallStore.doStore(sagaData(new TestId()))
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def 'concurrent inserts never exceed the configured maximum'() {
+        given:
+        def smallStore = new ConcurrentInMemorySagaStore(Mock(JsonMapper), 10)
+        def executor = Executors.newFixedThreadPool(8)
+        def rejected = new AtomicInteger()
+
+        when:
+        (1..100).each {
+            executor.submit {
+                try {
+                    smallStore.doStore(sagaData(new TestId()))
+                } catch (IllegalStateException ignored) {
+                    rejected.incrementAndGet()
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+
+        then:
+        smallStore.size() == 10
+        rejected.get() == 90
+    }
+
+    def 'sagas can be stored and deleted concurrently'() {
+        given:
+        def executor = Executors.newFixedThreadPool(8)
+        def sagas = (1..100).collect { sagaData(new TestId()) }
+
+        when:
+        sagas.each { data -> executor.submit { store.doStore(data); store.doDeleteSaga(data.id()) } }
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+
+        then:
+        store.size() == 0
+        store.associatedSagas.isEmpty()
+    }
+
+    private static AbstractSagaStore.SagaData withTimeout(AbstractSagaStore.SagaData sagaData, Instant scheduledTimeout) {
+        new AbstractSagaStore.SagaData(sagaData.id(), sagaData.sagaClassName(), sagaData.created(), sagaData.sagaState(), sagaData.associatedEntities(), scheduledTimeout, sagaData.fieldData())
+    }
+
+    private static AbstractSagaStore.SagaData sagaData(TestId testId) {
+        new AbstractSagaStore.SagaData(SagaId.createNew(CreateNewTestObjectSaga), CreateNewTestObjectSaga.name, Instant.now(), SagaState.START_STATE, [testId] as Set, Instant.MAX, new byte[0])
+    }
+}
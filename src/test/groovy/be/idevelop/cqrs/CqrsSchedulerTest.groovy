@@ -3,6 +3,10 @@ package be.idevelop.cqrs
 
 import spock.lang.Specification
 
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
 class CqrsSchedulerTest extends Specification {
 
     def 'verify that always the same scheduler is used for the same object id'() {
@@ -25,6 +29,75 @@ class CqrsSchedulerTest extends Specification {
         }
     }
 
+    def 'verify that an object id with the minimum hash code is scheduled on an existing shard'() {
+        given:
+        def scheduler = new CqrsScheduler('ABC', 3)
+
+        expect:
+        scheduler.schedule(new ObjectId(Integer.MIN_VALUE)) != null
+    }
+
+    def 'verify that a mailbox runs its tasks one at a time in submission order'() {
+        given:
+        def mailboxScheduler = new MailboxScheduler('ABC', 0, 0, OverflowPolicy.BLOCK, false, Duration.ofMinutes(1))
+        def mailbox = mailboxScheduler.mailbox(new ObjectId(1))
+        def executed = Collections.synchronizedList([])
+        def done = new CountDownLatch(1000)
+
+        when:
+        for (i in 0..<1000) {
+            def value = i
+            mailbox.execute {
+                executed << value
+                done.countDown()
+            }
+        }
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        executed == (0..<1000).toList()
+        mailboxScheduler.mailbox(new ObjectId(1)).is(mailbox)
+
+        cleanup:
+        mailboxScheduler.shutdown()
+    }
+
+    def 'verify that idle mailboxes are reclaimed'() {
+        given:
+        def mailboxScheduler = new MailboxScheduler('ABC', 0, 0, OverflowPolicy.BLOCK, false, Duration.ofMillis(1))
+        def mailbox = mailboxScheduler.mailbox(new ObjectId(1))
+
+        when:
+        Thread.sleep(10)
+        mailboxScheduler.reclaimIdleMailboxes()
+
+        then:
+        mailboxScheduler.size() == 0
+        !mailboxScheduler.mailbox(new ObjectId(1)).is(mailbox)
+
+        cleanup:
+        mailboxScheduler.shutdown()
+    }
+
+    def 'verify that a task submitted to a closed mailbox that is still mapped runs on a replacement mailbox'() {
+        given:
+        def mailboxScheduler = new MailboxScheduler('ABC', 0, 0, OverflowPolicy.BLOCK, false, Duration.ofMinutes(1))
+        def mailbox = mailboxScheduler.mailbox(new ObjectId(1))
+        def done = new CountDownLatch(1)
+
+        when: 'the mailbox is closed by the reclaimer but not yet removed'
+        mailbox.close()
+        mailbox.execute { done.countDown() }
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        !mailboxScheduler.mailbox(new ObjectId(1)).is(mailbox)
+        mailboxScheduler.size() == 1
+
+        cleanup:
+        mailboxScheduler.shutdown()
+    }
+
     private static class ObjectId implements Id {
 
         private final int value
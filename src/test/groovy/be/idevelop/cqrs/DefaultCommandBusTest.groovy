@@ -8,8 +8,10 @@ import reactor.core.publisher.Flux
 import reactor.core.publisher.Mono
 import spock.lang.Specification
 
+import java.time.Duration
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
 
 @MicronautTest
@@ -18,6 +20,9 @@ class DefaultCommandBusTest extends Specification {
     @Inject
     CommandBus commandBus
 
+    @Inject
+    EventRepository eventRepository
+
     def "Publish"() {
         given:
         def command = new TestCommand(new TestId())
@@ -41,13 +46,72 @@ class DefaultCommandBusTest extends Specification {
         assert objectId == command.objectId()
     }
 
+    def "PublishAll"() {
+        given:
+        def objectIds = (0..<10).collect { new TestId() }
+        def commands = objectIds.collectMany { [new TestCommand(it), new ValidateTestObjectCommand(it), new ValidateTestObjectCommand(it)] }
+
+        when:
+        def results = commandBus.publishAll(Flux.fromIterable(commands)).collectList().block()
+
+        then:
+        results.size() == commands.size()
+        results.every { it.success }
+        results*.command as Set == commands as Set
+
+        and: 'the commands for the same aggregate root were handled in the order they were published'
+        objectIds.every { objectId ->
+            results*.command.findAll { it.objectId() == objectId } == commands.findAll { it.objectId() == objectId }
+        }
+        objectIds.every { objectId ->
+            eventRepository.retrieveEventMessages(objectId, TestAggregateRoot).collectList().block()*.event().take(3)*.getClass() == [TestCreatedEvent, TestValidatedEvent, TestValidatedEvent]
+        }
+    }
+
+    def 'verify that a command failing with a concurrency conflict is retried and succeeds'() {
+        given:
+        def command = new TestCommand(new TestId())
+        def conflicts = new AtomicInteger(1)
+        InMemoryEventRepository.CONFLICTS.put(command.objectId(), conflicts)
+
+        when:
+        def objectId = commandBus.publishAndWait(command).block(Duration.ofSeconds(5))
+
+        then:
+        objectId == command.objectId()
+        conflicts.get() <= 0
+        eventRepository.retrieveEventMessages(command.objectId(), TestAggregateRoot).collectList().block()*.event().count { it instanceof TestCreatedEvent } == 1
+    }
+
     @MockBean
     @Replaces(EventRepository)
     static class InMemoryEventRepository implements EventRepository {
 
+        /**
+         * Number of saves per aggregate root that fail with a concurrency conflict before the next ones succeed.
+         */
+        static final ConcurrentMap<Id<?, ?>, AtomicInteger> CONFLICTS = new ConcurrentHashMap<>()
+
         @SuppressWarnings("rawtypes")
         final ConcurrentMap<Id, List> eventMessages = new ConcurrentHashMap<>()
 
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz, long expectedVersion) {
+            if (eventMessages.isEmpty()) {
+                return Mono.just(true)
+            }
+            def conflicts = CONFLICTS.get(eventMessages.get(0).objectId())
+            if (conflicts != null && conflicts.getAndDecrement() > 0) {
+                return Mono.error(new ConcurrencyConflictException(eventMessages.get(0).objectId(), expectedVersion, expectedVersion + 1))
+            }
+            return saveEventMessages(eventMessages, clazz)
+        }
+
+        @Override
+        boolean checksExpectedVersion() {
+            true
+        }
+
         @Override
         <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
             //noinspection unchecked
@@ -0,0 +1,43 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.ApplicationContext
+import io.micronaut.context.BeanProvider
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class DefaultEventBusTest extends Specification {
+
+    def dispatcher = new AsyncEventBusDispatcher(new NoopCqrsMetrics(), true, 16, 1, Duration.ofMillis(1), Duration.ofSeconds(5))
+
+    def cleanup() {
+        dispatcher.stop()
+    }
+
+    def 'verify that publishing succeeds in async mode while an event bus handler fails'() {
+        given:
+        def called = new CountDownLatch(1)
+        CqrsEventBusHandler failing = { event, meta ->
+            called.countDown()
+            throw new IllegalStateException('failing handler')
+        } as CqrsEventBusHandler
+        def applicationContext = Stub(ApplicationContext) {
+            getBeansOfType(CqrsEventBusHandler, _) >> [failing]
+        }
+        def metrics = new NoopCqrsMetrics()
+        def timeouts = new SagaTimeoutScheduler(Stub(BeanProvider), Stub(BeanProvider), Stub(BeanProvider), false, Duration.ofMillis(100), 512)
+        def sagaRepository = new SagaRepository(applicationContext, Stub(SagaStore), metrics, timeouts, new SagaCache(0), Duration.ofSeconds(1))
+        def eventBus = new DefaultEventBus(applicationContext, sagaRepository, metrics, dispatcher)
+        def eventMessage = new EventMessage<>(new EventMeta<>(new TestId(), 0, Instant.now()), new TestValidatedEvent())
+
+        when:
+        def published = eventBus.publish([eventMessage]).block()
+
+        then:
+        published
+        called.await(5, TimeUnit.SECONDS)
+    }
+}
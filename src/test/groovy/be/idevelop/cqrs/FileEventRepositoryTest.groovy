@@ -0,0 +1,180 @@
+package be.idevelop.cqrs
+
+import io.micronaut.json.JsonMapper
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+import java.time.Instant
+
+@MicronautTest
+class FileEventRepositoryTest extends Specification {
+
+    @Inject
+    JsonMapper jsonMapper
+
+    @TempDir
+    Path directory
+
+    def 'saved events are retrieved in order and after a given version'() {
+        given:
+        def repository = open(FsyncPolicy.GROUPED)
+        def testId = new TestId()
+
+        when:
+        repository.saveEventMessages(events(testId, 0, 3), TestAggregateRoot).block()
+        repository.saveEventMessages(events(new TestId(), 0, 2), TestAggregateRoot).block()
+
+        then:
+        repository.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.eventMeta()*.version() == [0, 1, 2]
+        repository.retrieveEventMessages(testId, TestAggregateRoot, 0).collectList().block()*.eventMeta()*.version() == [1, 2]
+        repository.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.event()*.class == [TestCreatedEvent, TestValidatedEvent, TestCreatedEvent]
+
+        cleanup:
+        repository.close()
+    }
+
+    def 'the global log returns the events of all aggregate roots in order from a position'() {
+        given:
+        def repository = open(FsyncPolicy.GROUPED)
+        def first = new TestId()
+        def second = new TestId()
+        repository.saveEventMessages(events(first, 0, 2), TestAggregateRoot).block()
+        repository.saveEventMessages(events(second, 0, 1), TestAggregateRoot).block()
+        repository.saveEventMessages(events(first, 2, 1), TestAggregateRoot).block()
+
+        when:
+        def all = repository.retrieveAllEventMessages(0, 10).collectList().block()
+        def tail = repository.retrieveAllEventMessages(all[1].nextPosition(), 1).collectList().block()
+
+        then:
+        all*.eventMessage()*.objectId() == [first, first, second, first]
+        all*.eventMessage()*.eventMeta()*.version() == [0, 1, 0, 2]
+        tail*.position() == [all[2].position()]
+
+        cleanup:
+        repository.close()
+    }
+
+    def 'the end of the global log follows its last event'() {
+        given:
+        def repository = open(FsyncPolicy.GROUPED)
+        repository.saveEventMessages(events(new TestId(), 0, 2), TestAggregateRoot).block()
+
+        when:
+        def end = repository.retrieveGlobalLogEnd().block()
+
+        then:
+        end == repository.retrieveAllEventMessages(0, 10).collectList().block()[1].nextPosition()
+        repository.retrieveAllEventMessages(end, 10).collectList().block().isEmpty()
+
+        cleanup:
+        repository.close()
+    }
+
+    def 'saving events based on an outdated version fails with a concurrency conflict'() {
+        given:
+        def repository = open(FsyncPolicy.GROUPED)
+        def testId = new TestId()
+        repository.saveEventMessages(events(testId, 0, 2), TestAggregateRoot, -1).block()
+
+        when:
+        repository.saveEventMessages(events(testId, 1, 1), TestAggregateRoot, 0).block()
+
+        then:
+        def conflict = thrown(ConcurrencyConflictException)
+        conflict.expectedVersion == 0
+        conflict.actualVersion == 1
+
+        when:
+        def batchResults = repository.saveEventMessageBatch([
+                new AggregateEventMessages<>(events(testId, 2, 1), TestAggregateRoot, 1),
+                new AggregateEventMessages<>(events(testId, 2, 1), TestAggregateRoot, 0)
+        ]).block()
+
+        then:
+        batchResults[0].get()
+        batchResults[1].throwable instanceof ConcurrencyConflictException
+        repository.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.eventMeta()*.version() == [0, 1, 2]
+
+        cleanup:
+        repository.close()
+    }
+
+    def 'events are recovered from the log and a torn tail write is truncated'() {
+        given:
+        def testId = new TestId()
+        def repository = open(FsyncPolicy.PER_WRITE)
+        repository.saveEventMessages(events(testId, 0, 2), TestAggregateRoot).block()
+        repository.close()
+        def segment = Files.list(directory).findFirst().get()
+        Files.write(segment, [0, 0, 0, 100, 1, 2] as byte[], StandardOpenOption.APPEND)
+        def sizeBeforeRecovery = Files.size(segment)
+
+        when:
+        def reopened = open(FsyncPolicy.PERIODIC)
+
+        then:
+        Files.size(segment) == sizeBeforeRecovery - 6
+        reopened.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.eventMeta()*.version() == [0, 1]
+
+        when:
+        reopened.saveEventMessages(events(testId, 2, 1), TestAggregateRoot).block()
+
+        then:
+        reopened.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.eventMeta()*.version() == [0, 1, 2]
+
+        cleanup:
+        reopened.close()
+    }
+
+    def 'segments are rolled once they are full'() {
+        given:
+        def repository = new FileEventRepository(jsonMapper, directory.toString(), 128, FsyncPolicy.GROUPED, Duration.ofMillis(100))
+        def testId = new TestId()
+
+        when:
+        (0..<10).each { repository.saveEventMessages(events(testId, it, 1), TestAggregateRoot).block() }
+
+        then:
+        Files.list(directory).count() > 1
+        repository.retrieveEventMessages(testId, TestAggregateRoot).collectList().block()*.eventMeta()*.version() == (0..<10).toList()
+
+        cleanup:
+        repository.close()
+    }
+
+    def 'entries with names beyond a signed 16 bit length are decoded, longer names are rejected'() {
+        given:
+        def longKey = 'k' * 40_000
+
+        when:
+        def buffer = new FileEventRepository.Entry(longKey, 1, Instant.EPOCH, TestCreatedEvent.name, new byte[0]).toBuffer()
+        def decoded = FileEventRepository.Entry.decode(buffer.position(Integer.BYTES * 2).slice())
+
+        then:
+        decoded.streamKey() == longKey
+        decoded.eventClassName() == TestCreatedEvent.name
+
+        when:
+        new FileEventRepository.Entry('k' * 70_000, 1, Instant.EPOCH, TestCreatedEvent.name, new byte[0])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private FileEventRepository open(FsyncPolicy fsyncPolicy) {
+        new FileEventRepository(jsonMapper, directory.toString(), 64 * 1024 * 1024, fsyncPolicy, Duration.ofMillis(100))
+    }
+
+    private static List<EventMessage<TestId, ? extends Record>> events(TestId testId, int fromVersion, int count) {
+        (fromVersion..<(fromVersion + count)).collect { version ->
+            new EventMessage<TestId, Record>(new EventMeta<>(testId, version, Instant.now()), version % 2 == 0 ? new TestCreatedEvent() : new TestValidatedEvent())
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package be.idevelop.cqrs
+
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Signal
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class GroupCommitterTest extends Specification {
+
+    def 'saves queued within the window are written as one batch and completed individually'() {
+        given:
+        def eventRepository = new BatchRecordingEventRepository()
+        def groupCommitter = new GroupCommitter(eventRepository, true, 10, Duration.ofMillis(200), 4096)
+        def saves = (1..5).collect { groupCommitter.save([eventMessage(new TestId())], TestAggregateRoot, -1) }
+
+        when:
+        def results = Flux.merge(saves).collectList().block(Duration.ofSeconds(5))
+
+        then:
+        results == [true] * 5
+        eventRepository.batchSizes == [5]
+
+        cleanup:
+        groupCommitter.stop()
+    }
+
+    def 'batches never exceed the maximum batch size'() {
+        given:
+        def eventRepository = new BatchRecordingEventRepository()
+        def groupCommitter = new GroupCommitter(eventRepository, true, 2, Duration.ofMillis(200), 4096)
+        def saves = (1..5).collect { groupCommitter.save([eventMessage(new TestId())], TestAggregateRoot, -1) }
+
+        when:
+        Flux.merge(saves).collectList().block(Duration.ofSeconds(5))
+
+        then:
+        eventRepository.batchSizes.every { it <= 2 }
+        eventRepository.batchSizes.sum() == 5
+
+        cleanup:
+        groupCommitter.stop()
+    }
+
+    def 'saves beyond the maximum pending saves fail on a non-blocking thread'() {
+        given:
+        def release = new CountDownLatch(1)
+        def eventRepository = new BatchRecordingEventRepository() {
+            @Override
+            Mono<List<Signal<Boolean>>> saveEventMessageBatch(List<AggregateEventMessages<?, ?>> batch) {
+                release.await()
+                return super.saveEventMessageBatch(batch)
+            }
+        }
+        def groupCommitter = new GroupCommitter(eventRepository, true, 1, Duration.ZERO, 1)
+        def flushing = groupCommitter.save([eventMessage(new TestId())], TestAggregateRoot, -1).toFuture()
+        new PollingConditions(timeout: 5).eventually {
+            assert groupCommitter.pendingSaves.isEmpty()
+        }
+        def pending = groupCommitter.save([eventMessage(new TestId())], TestAggregateRoot, -1).toFuture()
+
+        when:
+        groupCommitter.save([eventMessage(new TestId())], TestAggregateRoot, -1)
+                .subscribeOn(Schedulers.parallel())
+                .block(Duration.ofSeconds(5))
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        release.countDown()
+
+        then:
+        flushing.get(5, TimeUnit.SECONDS)
+        pending.get(5, TimeUnit.SECONDS)
+
+        cleanup:
+        release.countDown()
+        groupCommitter.stop()
+    }
+
+    private static EventMessage<TestId, ? extends Record> eventMessage(TestId testId) {
+        new EventMessage<TestId, Record>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent())
+    }
+
+    static class BatchRecordingEventRepository implements EventRepository {
+
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>()
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
+            return Flux.empty()
+        }
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz) {
+            return Mono.just(true)
+        }
+
+        @Override
+        Mono<List<Signal<Boolean>>> saveEventMessageBatch(List<AggregateEventMessages<?, ?>> batch) {
+            batchSizes.add(batch.size())
+            return Mono.just(batch.collect { Signal.next(true) })
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package be.idevelop.cqrs
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+
+class MicrometerCqrsMetricsTest extends Specification {
+
+    def meterRegistry = new SimpleMeterRegistry()
+
+    def metrics = new MicrometerCqrsMetrics(meterRegistry, new CqrsScheduler('metrics', 2))
+
+    def 'verify that a stage is timed and tagged by aggregate root, command and outcome'() {
+        when:
+        metrics.time(CqrsMetrics.Stage.COMMAND, Mono.just(1), TestAggregateRoot, TestCommand).block()
+        metrics.time(CqrsMetrics.Stage.COMMAND, Mono.error(new IllegalStateException()), TestAggregateRoot, TestCommand).onErrorResume { Mono.empty() }.block()
+
+        then:
+        meterRegistry.get('cqrs.command').tags('aggregate', TestAggregateRoot.name, 'command', TestCommand.name, 'outcome', 'success').timer().count() == 1
+        meterRegistry.get('cqrs.command').tags('outcome', 'error').timer().count() == 1
+        meterRegistry.get('cqrs.commands.inflight').gauge().value() == 0
+    }
+
+    def 'verify that a gauge is registered for the command queue of every shard'() {
+        expect:
+        meterRegistry.get('cqrs.scheduler.queue.depth').gauges().size() == 2
+    }
+
+    def 'verify that the busiest mailbox and the number of mailboxes are exposed in mailbox mode'() {
+        given:
+        def scheduler = new CqrsScheduler('metrics', 1, 0, 0, OverflowPolicy.BLOCK, false, CqrsScheduler.Mode.MAILBOX, Duration.ofMinutes(1))
+        def registry = new SimpleMeterRegistry()
+        new MicrometerCqrsMetrics(registry, scheduler)
+        def release = new CountDownLatch(1)
+        def objectId = new TestId()
+        scheduler.shard(objectId).scheduler().schedule { release.await() }
+        3.times { scheduler.shard(objectId).commandQueue().offer(entry(new TestCommand(objectId))) }
+        def otherId = new TestId()
+        scheduler.shard(otherId).commandQueue().offer(entry(new TestCommand(otherId)))
+
+        expect:
+        new PollingConditions(timeout: 5).eventually {
+            assert registry.get('cqrs.scheduler.queue.depth.max').gauge().value() == 3
+            assert registry.get('cqrs.scheduler.mailboxes').gauge().value() == 2
+        }
+
+        cleanup:
+        release.countDown()
+        scheduler.shutdown()
+    }
+
+    private static CommandQueue.Entry entry(Command command) {
+        return [
+                command: { command },
+                run    : { List<CommandQueue.Entry> entries, Runnable done -> done.run() },
+                reject : { CommandRejectedException e -> }
+        ] as CommandQueue.Entry
+    }
+}
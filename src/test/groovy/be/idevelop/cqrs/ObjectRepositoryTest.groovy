@@ -0,0 +1,72 @@
+package be.idevelop.cqrs
+
+import io.micronaut.json.JsonMapper
+import io.micronaut.test.annotation.MockBean
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Instant
+
+@MicronautTest
+class ObjectRepositoryTest extends Specification {
+
+    @Inject
+    ObjectRepository objectRepository
+
+    @Inject
+    EventRepository eventRepository
+
+    @Inject
+    SnapshotStore snapshotStore
+
+    @Inject
+    JsonMapper jsonMapper
+
+    @MockBean(SnapshotStore)
+    SnapshotStore snapshotStore() {
+        Mock(SnapshotStore)
+    }
+
+    def 'verify that a retrieved aggregate root is restored from its snapshot and replays only the later events'() {
+        given:
+        def testId = saveEvents()
+        // the snapshot state differs from the replayed state, so replaying the snapshotted event would show
+        def fieldData = jsonMapper.writeValueAsBytes([created: false, validated: false])
+        snapshotStore.retrieveSnapshot(testId, TestAggregateRoot) >> Mono.just(new Snapshot<>(testId, 0, Instant.now(), fieldData))
+
+        when:
+        def aggregateRoot = objectRepository.retrieve(testId, TestAggregateRoot).block()
+
+        then:
+        aggregateRoot.version == 1
+        aggregateRoot.snapshotVersion == 0
+        !aggregateRoot.created
+        aggregateRoot.validated
+    }
+
+    def 'verify that an aggregate root replays all its events when its snapshot cannot be read'() {
+        given:
+        def testId = saveEvents()
+        snapshotStore.retrieveSnapshot(testId, TestAggregateRoot) >> Mono.just(new Snapshot<>(testId, 0, Instant.now(), 'not json'.bytes))
+
+        when:
+        def aggregateRoot = objectRepository.retrieve(testId, TestAggregateRoot).block()
+
+        then:
+        aggregateRoot.version == 1
+        aggregateRoot.snapshotVersion == -1
+        aggregateRoot.created
+        aggregateRoot.validated
+    }
+
+    private TestId saveEvents() {
+        def testId = new TestId()
+        eventRepository.saveEventMessages([
+                new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent()),
+                new EventMessage<>(new EventMeta<>(testId, 1, Instant.now()), new TestValidatedEvent())
+        ], TestAggregateRoot).block()
+        testId
+    }
+}
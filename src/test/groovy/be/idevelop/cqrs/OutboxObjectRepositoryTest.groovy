@@ -0,0 +1,75 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.annotation.Property
+import io.micronaut.test.annotation.MockBean
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+
+@MicronautTest
+@Property(name = "cqrs.outbox.enabled", value = "true")
+class OutboxObjectRepositoryTest extends Specification {
+
+    @Inject
+    ObjectRepository objectRepository
+
+    @Inject
+    EventBus eventBus
+
+    @Inject
+    EventRepository eventRepository
+
+    @MockBean(EventBus)
+    EventBus eventBus() {
+        Mock(EventBus)
+    }
+
+    @MockBean(EventRepository)
+    EventRepository eventRepository() {
+        new OutboxEventRepository()
+    }
+
+    def 'verify that saved events are left to the outbox relay instead of being published'() {
+        given:
+        def aggregateRoot = objectRepository.retrieve(new TestId(), TestAggregateRoot).block()
+        aggregateRoot.init()
+
+        when:
+        def saved = objectRepository.save(aggregateRoot).block()
+
+        then:
+        0 * eventBus.publish(_)
+        saved.version == 0
+        eventRepository.retrieveEventMessages(aggregateRoot.id, TestAggregateRoot).collectList().block()*.event()*.getClass() == [TestCreatedEvent]
+    }
+
+    /**
+     * Keeps the events per aggregate root, with an empty global log so the running relay has nothing to publish.
+     */
+    static class OutboxEventRepository implements EventRepository {
+
+        final Map<Id<?, ?>, List> eventMessages = new ConcurrentHashMap<>()
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
+            Flux.fromIterable(eventMessages.getOrDefault(objectId, []))
+        }
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz) {
+            if (!eventMessages.isEmpty()) {
+                this.eventMessages.computeIfAbsent(eventMessages.get(0).objectId(), id -> Collections.synchronizedList([])).addAll(eventMessages)
+            }
+            Mono.just(true)
+        }
+
+        @Override
+        Flux<GlobalEventMessage> retrieveAllEventMessages(long fromPosition, int maxCount) {
+            Flux.empty()
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.BeanProvider
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class OutboxRelayTest extends Specification {
+
+    def first = new TestId()
+
+    def second = new TestId()
+
+    // the events of both aggregate roots are interleaved in the log, at positions 0 to 5
+    def log = [first, second, first, second, first, second].withIndex().collect { objectId, position ->
+        new GlobalEventMessage(position, position + 1, new EventMessage<>(new EventMeta<>(objectId, position.intdiv(2), Instant.now()), new TestValidatedEvent()))
+    }
+
+    def logEnd = 6L
+
+    def checkpoints = new ConcurrentHashMap<String, Long>([(OutboxRelay.CHECKPOINT): 0L])
+
+    def cqrsScheduler = new CqrsScheduler('outbox', 2)
+
+    def published = new ConcurrentHashMap<Id, List<Long>>()
+
+    def relays = []
+
+    def cleanup() {
+        relays*.stop()
+        cqrsScheduler.shutdown()
+    }
+
+    def 'verify that the events are published in order per aggregate root and the checkpoint advances'() {
+        when:
+        relay({ eventMessages -> Mono.just(true) })
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        published[first] == [0L, 1L, 2L]
+        published[second] == [0L, 1L, 2L]
+    }
+
+    def 'verify that only the events of the aggregate roots that failed are retried'() {
+        given:
+        def failures = new AtomicInteger()
+
+        when:
+        relay({ eventMessages ->
+            eventMessages[0].objectId() == first && failures.incrementAndGet() == 1 ? Mono.error(new IllegalStateException('failing event bus')) : Mono.just(true)
+        })
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        published[first] == [0L, 1L, 2L, 0L, 1L, 2L]
+        published[second] == [0L, 1L, 2L]
+    }
+
+    def 'verify that a relay without checkpoint starts at the end of the log'() {
+        given:
+        checkpoints.clear()
+        logEnd = 4L
+
+        when:
+        relay({ eventMessages -> Mono.just(true) })
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        published[first] == [2L]
+        published[second] == [2L]
+    }
+
+    def 'verify that the events are published on the shard of their aggregate root'() {
+        given:
+        def onShard = Collections.synchronizedList([])
+
+        when:
+        relay({ eventMessages ->
+            Mono.deferContextual { context ->
+                def objectId = eventMessages[0].objectId()
+                onShard << (cqrsScheduler.shard(objectId).isShardThread() && context.get(CqrsScheduler.SHARD_CONTEXT_KEY) == cqrsScheduler.schedule(objectId))
+                Mono.just(true)
+            }
+        })
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        onShard == [true, true]
+    }
+
+    def 'verify that a restarted relay resumes from its checkpoint'() {
+        given:
+        checkpoints[OutboxRelay.CHECKPOINT] = 4L
+
+        when:
+        relay({ eventMessages -> Mono.just(true) })
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        published[first] == [2L]
+        published[second] == [2L]
+    }
+
+    def 'verify that the events of an aggregate root that keeps failing are dead-lettered'() {
+        when:
+        def relay = relay({ eventMessages -> Mono.just(eventMessages[0].objectId() != first) }, 2)
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert checkpoints[OutboxRelay.CHECKPOINT] == 6L
+        }
+        relay.deadLettered() == 3
+        published[first] == [0L, 1L, 2L, 0L, 1L, 2L]
+        published[second] == [0L, 1L, 2L]
+    }
+
+    private OutboxRelay relay(Closure<Mono<Boolean>> publish, int maxAttempts = 10) {
+        def eventRepository = [
+                retrieveAllEventMessages: { long fromPosition, int maxCount -> Flux.fromIterable(log.findAll { it.position() >= fromPosition }.take(maxCount)) },
+                retrieveGlobalLogEnd    : { -> Mono.just(logEnd) }
+        ] as EventRepository
+        def eventBus = [
+                publish: { List eventMessages ->
+                    published.computeIfAbsent(eventMessages[0].objectId(), id -> Collections.synchronizedList([])).addAll(eventMessages*.eventMeta()*.version())
+                    publish.call(eventMessages)
+                }
+        ] as EventBus
+        def checkpointStore = [
+                loadCheckpoint: { String name -> Mono.justOrEmpty(checkpoints[name]) },
+                saveCheckpoint: { String name, long position -> Mono.fromRunnable { checkpoints[name] = position } }
+        ] as CheckpointStore
+        def relay = new OutboxRelay(provider(eventRepository), provider(eventBus), provider(cqrsScheduler), provider(checkpointStore), true, 10, Duration.ofMillis(10), Duration.ofMillis(10), maxAttempts)
+        relays << relay
+        relay
+    }
+
+    private BeanProvider provider(Object bean) {
+        Stub(BeanProvider) {
+            get() >> bean
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package be.idevelop.cqrs
+
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Instant
+
+class SagaCacheTest extends Specification {
+
+    def cache = new SagaCache(2)
+
+    def 'verify that associated sagas are loaded once and stored sagas are written through'() {
+        given:
+        def testId = new TestId()
+        def stored = saga(testId)
+        def loads = 0
+        def store = { loads++; Flux.just(stored) }
+
+        when:
+        def first = cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block()
+        def second = cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block()
+
+        then:
+        loads == 1
+        first == [stored]
+        second[0].is(stored)
+
+        when:
+        def created = saga(testId)
+        cache.put(created)
+
+        then:
+        cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block() == [stored, created]
+        loads == 1
+
+        when:
+        cache.invalidate(stored)
+
+        then:
+        cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block() == [created]
+        cache.statistics().hits() == 3
+        cache.statistics().misses() == 1
+    }
+
+    def 'verify that evicting a saga drops the index entries of its linked entities'() {
+        given:
+        def testId = new TestId()
+        def loads = 0
+        def store = { loads++; Flux.just(saga(testId)) }
+        cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block()
+
+        when:
+        cache.put(saga(new TestId()))
+        cache.put(saga(new TestId()))
+        cache.findAssociatedSagas(testId, CreateNewTestObjectSaga, store).collectList().block()
+
+        then:
+        loads == 2
+        cache.statistics().evictions() >= 1
+    }
+
+    def 'verify that a segmented cache stays bounded while it is used from several threads'() {
+        given:
+        def segmented = new SagaCache(1024)
+
+        when:
+        def threads = (0..<4).collect {
+            Thread.start {
+                2000.times {
+                    def saga = saga(new TestId())
+                    segmented.put(saga)
+                    assert segmented.findSaga(saga.sagaId, { Mono.empty() }).block().is(saga)
+                }
+            }
+        }
+        threads*.join()
+
+        then:
+        segmented.statistics().size() <= 1024
+        segmented.statistics().evictions() == 8000 - segmented.statistics().size()
+        segmented.statistics().hits() == 8000
+    }
+
+    private static CreateNewTestObjectSaga saga(TestId testId) {
+        def saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga), Instant.now())
+        saga.linkEntity(testId)
+        saga
+    }
+}
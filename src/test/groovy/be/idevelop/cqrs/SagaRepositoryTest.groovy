@@ -0,0 +1,157 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.ApplicationContext
+import io.micronaut.json.JsonMapper
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.Instant
+
+@MicronautTest
+class SagaRepositoryTest extends Specification {
+
+    @Inject
+    SagaRepository sagaRepository
+
+    @Inject
+    SagaStore sagaStore
+
+    @Inject
+    ApplicationContext applicationContext
+
+    @Inject
+    JsonMapper jsonMapper
+
+    @Inject
+    SagaStateCodec stateCodec
+
+    @Inject
+    CqrsMetrics metrics
+
+    @Inject
+    SagaTimeoutScheduler timeouts
+
+    def 'verify that the events of a batch are applied in order to the sagas found or created for them'() {
+        given:
+        def testId = new TestId()
+        def created = new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent())
+        def validated = new EventMessage<>(new EventMeta<>(testId, 1, Instant.now()), new TestValidatedEvent())
+
+        when:
+        sagaRepository.handleEventsOnSagas([created]).block()
+
+        then:
+        sagaStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block()*.getCurrentState() == [CreateNewTestObjectSaga.State.VALIDATE]
+
+        when:
+        sagaRepository.handleEventsOnSagas([validated]).block()
+
+        then:
+        sagaStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block().isEmpty()
+
+        when: 'the saga is created and ended by the same batch'
+        def otherId = new TestId()
+        sagaRepository.handleEventsOnSagas([
+                new EventMessage<>(new EventMeta<>(otherId, 0, Instant.now()), new TestCreatedEvent()),
+                new EventMessage<>(new EventMeta<>(otherId, 1, Instant.now()), new TestValidatedEvent())
+        ]).block()
+
+        then:
+        sagaStore.findAssociatedSagas(otherId, CreateNewTestObjectSaga).collectList().block().isEmpty()
+    }
+
+    def 'verify that a stored saga is found with its linked entity to handle its timeout on'() {
+        given:
+        def testId = new TestId()
+        sagaRepository.handleEventsOnSagas([new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent())]).block()
+        def sagaId = sagaStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).blockFirst().sagaId
+
+        expect:
+        sagaStore.findSaga(sagaId).block().linkedEntities == [testId] as Set
+        sagaRepository.findTimeoutEntity(sagaId).block() == testId
+    }
+
+    def 'verify that a batch looks up the sagas once per linked entity and saga class and stores every changed saga once'() {
+        given:
+        def countingStore = new CountingSagaStore(jsonMapper, stateCodec)
+        def countingRepository = new SagaRepository(applicationContext, countingStore, metrics, timeouts, new SagaCache(0), Duration.ofSeconds(1))
+        def testId = new TestId()
+        def otherId = new TestId()
+        countingRepository.handleEventsOnSagas([new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent())]).block()
+        def existing = countingStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).blockFirst().sagaId
+        countingStore.lookups.clear()
+        countingStore.writes.clear()
+
+        when:
+        countingRepository.handleEventsOnSagas([
+                new EventMessage<>(new EventMeta<>(testId, 1, Instant.now()), new TestValidatedEvent()),
+                new EventMessage<>(new EventMeta<>(otherId, 0, Instant.now()), new TestCreatedEvent()),
+                new EventMessage<>(new EventMeta<>(testId, 2, Instant.now()), new TestValidatedEvent())
+        ]).block()
+
+        then: 'the existing saga is ended and a saga is created for the other entity'
+        countingStore.lookups == [testId]
+        countingStore.writes.size() == 2
+        countingStore.writes.toSet().size() == 2
+        countingStore.writes.contains(existing)
+        countingStore.findAssociatedSagas(testId, CreateNewTestObjectSaga).collectList().block().isEmpty()
+        countingStore.findAssociatedSagas(otherId, CreateNewTestObjectSaga).collectList().block()*.getCurrentState() == [CreateNewTestObjectSaga.State.VALIDATE]
+    }
+
+    def 'verify that a cached saga whose handler throws is dropped from the cache with the commands it queued'() {
+        given:
+        def cache = new SagaCache(100)
+        def store = new InMemorySagaStore(jsonMapper, stateCodec)
+        def cachingRepository = new SagaRepository(applicationContext, store, metrics, timeouts, cache, Duration.ofSeconds(1))
+        def testId = new TestId()
+        cachingRepository.handleEventsOnSagas([new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestFailingEvent())]).block()
+        def sagaId = store.findAssociatedSagas(testId, FailingTestSaga).blockFirst().sagaId
+        def cached = cache.findSaga(sagaId, { Mono.empty() }).block()
+
+        when:
+        cachingRepository.handleEventsOnSagas([new EventMessage<>(new EventMeta<>(testId, 1, Instant.now()), new TestFailingEvent())]).block()
+
+        then:
+        thrown(IllegalStateException)
+        cached != null
+        cached.commandsToPublish.isEmpty()
+        cache.findSaga(sagaId, { Mono.empty() }).block() == null
+        store.findSaga(sagaId).block().getCurrentState() == FailingTestSaga.State.WAITING
+    }
+
+    /**
+     * Records the linked entities the sagas are looked up for and the ids of the sagas stored or deleted.
+     */
+    static class CountingSagaStore extends InMemorySagaStore {
+
+        final List<Id> lookups = Collections.synchronizedList([])
+
+        final List<SagaId> writes = Collections.synchronizedList([])
+
+        CountingSagaStore(JsonMapper jsonMapper, SagaStateCodec stateCodec) {
+            super(jsonMapper, stateCodec)
+        }
+
+        @Override
+        <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<S> findAssociatedSagas(I id, Class<S> sagaClass) {
+            lookups << id
+            super.findAssociatedSagas(id, sagaClass)
+        }
+
+        @Override
+        <S extends Saga<S>> void storeSaga(S saga) {
+            writes << saga.sagaId
+            super.storeSaga(saga)
+        }
+
+        @Override
+        <S extends Saga<S>> void deleteSaga(S saga) {
+            writes << saga.sagaId
+            super.deleteSaga(saga)
+        }
+    }
+}
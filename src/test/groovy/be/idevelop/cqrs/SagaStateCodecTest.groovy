@@ -0,0 +1,38 @@
+package be.idevelop.cqrs
+
+import io.micronaut.json.JsonMapper
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.time.Duration
+import java.time.Instant
+
+@MicronautTest
+class SagaStateCodecTest extends Specification {
+
+    @Inject
+    JsonMapper jsonMapper
+
+    @Inject
+    SagaStateCodec stateCodec
+
+    def 'verify that the state record of a typed saga is stored as binary BSON and rebuilt'() {
+        given:
+        def store = new ConcurrentInMemorySagaStore(jsonMapper, stateCodec, 10, 0, Duration.ZERO)
+        def saga = new TypedTestSaga(SagaId.createNew(TypedTestSaga), Instant.now())
+        saga.attempt('first')
+        saga.attempt('second')
+
+        when:
+        def encoded = stateCodec.encode(saga)
+        store.storeSaga(saga)
+        def rebuilt = store.findSaga(saga.getSagaId()).block()
+
+        then:
+        ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN).getInt() == encoded.length
+        rebuilt.getState() == new TypedTestSaga.Data(2, 'second')
+    }
+}
@@ -0,0 +1,57 @@
+package be.idevelop.cqrs
+
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Instant
+
+@MicronautTest
+class SagaTimeoutSchedulerTest extends Specification {
+
+    @Inject
+    SagaRepository sagaRepository
+
+    @Inject
+    SagaTimeoutScheduler timeouts
+
+    def 'verify that the timeout of a saga is delivered to its saga event handler'() {
+        given:
+        TimeoutTestSaga.TIMED_OUT.clear()
+
+        when:
+        sagaRepository.handleEventOnSagas(new EventMessage<>(new EventMeta<>(new TestId(), 0, Instant.now()), new TestTimeoutStartedEvent())).block()
+
+        then:
+        timeouts.size() == 1
+        new PollingConditions(timeout: 5).eventually {
+            assert TimeoutTestSaga.TIMED_OUT.size() == 1
+            assert timeouts.size() == 0
+        }
+    }
+
+    def 'verify that a cancelled or rescheduled timeout is not delivered'() {
+        given:
+        def cancelled = SagaId.createNew(TimeoutTestSaga)
+        def rescheduled = SagaId.createNew(TimeoutTestSaga)
+
+        when:
+        timeouts.schedule(cancelled, Instant.now().plusMillis(100))
+        timeouts.schedule(rescheduled, Instant.now().plusMillis(100))
+        timeouts.cancel(cancelled)
+        timeouts.schedule(rescheduled, Instant.now().plusSeconds(3600))
+
+        then:
+        timeouts.size() == 1
+
+        when:
+        sleep(500)
+
+        then:
+        timeouts.size() == 1
+
+        cleanup:
+        timeouts.cancel(rescheduled)
+    }
+}
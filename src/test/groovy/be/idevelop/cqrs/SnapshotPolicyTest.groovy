@@ -0,0 +1,59 @@
+package be.idevelop.cqrs
+
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.Instant
+
+class SnapshotPolicyTest extends Specification {
+
+    def 'snapshot is required once the event threshold is reached'() {
+        given:
+        def policy = new SnapshotPolicy(10, Duration.ZERO)
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+        aggregateRoot.snapshotVersion = 5
+
+        when:
+        aggregateRoot.version = version
+
+        then:
+        policy.isSnapshotRequired(aggregateRoot, Instant.now()) == required
+
+        where:
+        version || required
+        5       || false
+        14      || false
+        15      || true
+        100     || true
+    }
+
+    def 'snapshot is required once the interval since the last snapshot has passed'() {
+        given:
+        def now = Instant.now()
+        def policy = new SnapshotPolicy(0, Duration.ofMinutes(5))
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+        aggregateRoot.version = 3
+        aggregateRoot.markSnapshotted(2, now.minus(age))
+
+        expect:
+        policy.isSnapshotRequired(aggregateRoot, now) == required
+
+        where:
+        age                   || required
+        Duration.ofMinutes(1) || false
+        Duration.ofMinutes(5) || true
+        Duration.ofHours(1)   || true
+    }
+
+    def 'no snapshot is required without new events'() {
+        given:
+        def policy = new SnapshotPolicy(1, Duration.ofSeconds(1))
+        def aggregateRoot = new TestAggregateRoot(new TestId())
+        aggregateRoot.version = 7
+        aggregateRoot.markSnapshotted(7, Instant.EPOCH)
+
+        expect:
+        !policy.isSnapshotRequired(aggregateRoot, Instant.now())
+        !new SnapshotPolicy(0, Duration.ZERO).isEnabled()
+    }
+}
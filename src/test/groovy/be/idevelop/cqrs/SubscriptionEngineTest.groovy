@@ -0,0 +1,117 @@
+package be.idevelop.cqrs
+
+import io.micronaut.context.BeanProvider
+import io.micronaut.json.JsonMapper
+import io.micronaut.test.extensions.spock.annotation.MicronautTest
+import jakarta.inject.Inject
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Path
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+
+@MicronautTest
+class SubscriptionEngineTest extends Specification {
+
+    @Inject
+    JsonMapper jsonMapper
+
+    @TempDir
+    Path directory
+
+    def 'verify that a projection catches up in order per aggregate root and keeps tailing the event log'() {
+        given:
+        def repository = new FileEventRepository(jsonMapper, directory.toString(), 64 * 1024 * 1024, FsyncPolicy.GROUPED, Duration.ofMillis(100))
+        def checkpoints = new ConcurrentHashMap<String, Long>()
+        CheckpointStore checkpointStore = new CheckpointStore() {
+            Mono<Long> loadCheckpoint(String name) { Mono.justOrEmpty(checkpoints[name]) }
+
+            Mono<Void> saveCheckpoint(String name, long position) { Mono.fromRunnable { checkpoints[name] = position } }
+        }
+        def projection = new RecordingProjection()
+        def ids = (1..8).collect { new TestId() }
+        ids.each { repository.saveEventMessages(events(it, 0, 5), TestAggregateRoot).block() }
+
+        when:
+        def engine = new SubscriptionEngine([projection], { repository } as BeanProvider, { checkpointStore } as BeanProvider,
+                true, 7, 4, Duration.ofMillis(10), Duration.ofMillis(10), 10)
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert ids.every { projection.versions[it] == [0, 1, 2, 3, 4] }
+        }
+
+        when:
+        repository.saveEventMessages(events(ids[0], 5, 2), TestAggregateRoot).block()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert projection.versions[ids[0]] == [0, 1, 2, 3, 4, 5, 6]
+            assert checkpoints['projection-recording'] == engine.position('recording').get()
+        }
+
+        cleanup:
+        engine?.stop()
+        repository.close()
+    }
+
+    def 'verify that the events of a partition that keeps failing are dead-lettered'() {
+        given:
+        def repository = new FileEventRepository(jsonMapper, directory.toString(), 64 * 1024 * 1024, FsyncPolicy.GROUPED, Duration.ofMillis(100))
+        def checkpoints = new ConcurrentHashMap<String, Long>()
+        CheckpointStore checkpointStore = new CheckpointStore() {
+            Mono<Long> loadCheckpoint(String name) { Mono.justOrEmpty(checkpoints[name]) }
+
+            Mono<Void> saveCheckpoint(String name, long position) { Mono.fromRunnable { checkpoints[name] = position } }
+        }
+        def poison = new TestId()
+        def projection = new RecordingProjection() {
+            @Override
+            void handle(List<EventMessage<?, ? extends Record>> eventMessages) {
+                if (eventMessages.any { it.objectId() == poison }) {
+                    throw new IllegalStateException('poison event')
+                }
+                super.handle(eventMessages)
+            }
+        }
+        repository.saveEventMessages(events(poison, 0, 3), TestAggregateRoot).block()
+        def end = repository.retrieveGlobalLogEnd().block()
+
+        when:
+        def engine = new SubscriptionEngine([projection], { repository } as BeanProvider, { checkpointStore } as BeanProvider,
+                true, 7, 4, Duration.ofMillis(10), Duration.ofMillis(10), 2)
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert engine.position('recording') == Optional.of(end)
+            assert checkpoints['projection-recording'] == end
+        }
+        engine.deadLettered() == 3
+        projection.versions.isEmpty()
+
+        cleanup:
+        engine?.stop()
+        repository.close()
+    }
+
+    private static List<EventMessage<TestId, ? extends Record>> events(TestId testId, int fromVersion, int count) {
+        (fromVersion..<(fromVersion + count)).collect { version ->
+            new EventMessage<TestId, Record>(new EventMeta<>(testId, version, Instant.now()), new TestCreatedEvent())
+        }
+    }
+
+    static class RecordingProjection implements Projection {
+
+        final Map<TestId, List<Long>> versions = new ConcurrentHashMap<>()
+
+        String name() { 'recording' }
+
+        void handle(List<EventMessage<?, ? extends Record>> eventMessages) {
+            eventMessages.each { versions.computeIfAbsent(it.objectId() as TestId, { Collections.synchronizedList([]) }) << it.eventMeta().version() }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.core.order.OrderUtil;
+import io.micronaut.inject.qualifiers.Qualifiers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares replaying an aggregate root through the cached handler loop with the former per event Flux pipeline, which
+ * resolved the event handlers through the application context for every event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+public class AggregateRootReplayBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int events;
+
+    private ApplicationContext applicationContext;
+
+    private AggregateRootFactory aggregateRootFactory;
+
+    private TestId testId;
+
+    private List<EventMessage<TestId, ? extends Record>> eventMessages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.applicationContext = ApplicationContext.run("test");
+        this.aggregateRootFactory = applicationContext.getBean(AggregateRootFactory.class);
+        this.testId = new TestId();
+        this.eventMessages = new ArrayList<>(events);
+        for (var version = 0; version < events; version++) {
+            Record event = version % 2 == 0 ? new TestCreatedEvent() : new TestValidatedEvent();
+            this.eventMessages.add(new EventMessage<>(new EventMeta<>(testId, version, Instant.now()), event));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.applicationContext.close();
+    }
+
+    @Benchmark
+    public TestAggregateRoot replay() {
+        var aggregateRoot = aggregateRootFactory.createNewAggregateRootInstance(testId, TestAggregateRoot.class);
+        for (var eventMessage : eventMessages) {
+            aggregateRoot.replay(eventMessage);
+        }
+        return aggregateRoot;
+    }
+
+    @Benchmark
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public TestAggregateRoot replayThroughFluxPerEvent() {
+        var aggregateRoot = aggregateRootFactory.createNewAggregateRootInstance(testId, TestAggregateRoot.class);
+        for (var eventMessage : eventMessages) {
+            Flux.fromIterable(applicationContext.getBeansOfType(CqrsEventHandler.class, Qualifiers.byTypeArguments(TestAggregateRoot.class, eventMessage.event().getClass())))
+                    .sort(OrderUtil.COMPARATOR)
+                    .doOnNext(handler -> handler.onEvent(aggregateRoot, eventMessage.event()))
+                    .doOnComplete(() -> aggregateRoot.version = eventMessage.eventMeta().version())
+                    .subscribe();
+        }
+        return aggregateRoot;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AggregateRootReplayBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command throughput through the {@link DefaultCommandBus}, from creating aggregate roots, which also creates a saga
+ * that sends a follow-up command, to handling commands on existing aggregate roots, alone, concurrently and in bulk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+public class CommandBusBenchmark {
+
+    private static final int AGGREGATE_ROOTS = 1024;
+
+    private static final int BULK_SIZE = 1000;
+
+    @Param({"SHARDED", "MAILBOX"})
+    String schedulerMode;
+
+    private ApplicationContext applicationContext;
+
+    private CommandBus commandBus;
+
+    private TestId[] objectIds;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.applicationContext = ApplicationContext.builder("test", "benchmark")
+                .properties(Map.of("cqrs.scheduler.mode", schedulerMode))
+                .start();
+        this.commandBus = applicationContext.getBean(CommandBus.class);
+        this.objectIds = new TestId[AGGREGATE_ROOTS];
+        for (var i = 0; i < objectIds.length; i++) {
+            objectIds[i] = commandBus.publishAndWait(new TestCommand(new TestId())).block();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.applicationContext.close();
+    }
+
+    @Benchmark
+    public TestId createAggregateRoot() {
+        return commandBus.publishAndWait(new TestCommand(new TestId())).block();
+    }
+
+    @Benchmark
+    public TestId handleCommand() {
+        return commandBus.publishAndWait(new ValidateTestObjectCommand(nextObjectId())).block();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public TestId handleCommandConcurrently() {
+        return commandBus.publishAndWait(new ValidateTestObjectCommand(nextObjectId())).block();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public Long publishAll() {
+        return commandBus.publishAll(Flux.range(0, BULK_SIZE).map(i -> new ValidateTestObjectCommand(nextObjectId())))
+                .count()
+                .block();
+    }
+
+    private TestId nextObjectId() {
+        return objectIds[Math.floorMod(next.getAndIncrement(), objectIds.length)];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CommandBusBenchmark.class.getSimpleName()).build()).run();
+    }
+}
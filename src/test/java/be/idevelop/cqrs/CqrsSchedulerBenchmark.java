@@ -0,0 +1,71 @@
+package be.idevelop.cqrs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on the {@link CqrsScheduler} when many threads hand work to few or many aggregate roots at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+@Threads(8)
+public class CqrsSchedulerBenchmark {
+
+    @Param({"SHARDED", "MAILBOX"})
+    String mode;
+
+    @Param({"4", "1024"})
+    int aggregateRoots;
+
+    private CqrsScheduler cqrsScheduler;
+
+    private TestId[] objectIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.cqrsScheduler = new CqrsScheduler("benchmark", 4, 0, 0, OverflowPolicy.BLOCK, false, CqrsScheduler.Mode.valueOf(mode), Duration.ofMinutes(1));
+        this.objectIds = new TestId[aggregateRoots];
+        for (var i = 0; i < objectIds.length; i++) {
+            objectIds[i] = new TestId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cqrsScheduler.shutdown();
+    }
+
+    @Benchmark
+    public TestId schedule() {
+        var objectId = objectIds[ThreadLocalRandom.current().nextInt(objectIds.length)];
+        return Mono.just(objectId).subscribeOn(cqrsScheduler.schedule(objectId)).block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CqrsSchedulerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
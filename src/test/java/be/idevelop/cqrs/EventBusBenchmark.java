@@ -0,0 +1,70 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of event messages by the {@link DefaultEventBus} to the event bus handlers and the saga routes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+public class EventBusBenchmark {
+
+    @Param({"1", "10", "100"})
+    int events;
+
+    private ApplicationContext applicationContext;
+
+    private EventBus eventBus;
+
+    private List<EventMessage<TestId, ? extends Record>> eventMessages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.applicationContext = ApplicationContext.run("test", "benchmark");
+        this.eventBus = applicationContext.getBean(EventBus.class);
+        var testId = new TestId();
+        this.eventMessages = new ArrayList<>(events);
+        for (var version = 0; version < events; version++) {
+            this.eventMessages.add(new EventMessage<>(new EventMeta<>(testId, version, Instant.now()), new TestValidatedEvent()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.applicationContext.close();
+    }
+
+    @Benchmark
+    public Boolean publish() {
+        return eventBus.publish(eventMessages).block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventBusBenchmark.class.getSimpleName()).build()).run();
+    }
+}
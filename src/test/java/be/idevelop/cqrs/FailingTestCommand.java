@@ -0,0 +1,17 @@
+package be.idevelop.cqrs;
+
+public class FailingTestCommand implements Command<TestId> {
+
+    final TestId testId;
+    final CommandMeta<TestId> metadata;
+
+    FailingTestCommand(TestId testId) {
+        this.testId = testId;
+        this.metadata = new CommandMeta<>(testId);
+    }
+
+    @Override
+    public CommandMeta<TestId> meta() {
+        return metadata;
+    }
+}
@@ -0,0 +1,43 @@
+package be.idevelop.cqrs;
+
+import jakarta.inject.Singleton;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static be.idevelop.cqrs.FailingTestSaga.State.WAITING;
+
+final class FailingTestSaga extends Saga<FailingTestSaga> {
+
+    @Override
+    protected Map<String, Object> getFieldData() {
+        return Map.of();
+    }
+
+    @Override
+    protected void hydrateFieldData(Map<String, Object> fieldData) {
+    }
+
+    enum State implements SagaState {
+        WAITING
+    }
+
+    public FailingTestSaga(SagaId<FailingTestSaga> sagaId, Instant created) {
+        super(sagaId, created, State.values());
+    }
+
+    @Singleton
+    static class SagaEventHandlers {
+
+        @SagaEventHandler(state = "START_STATE", event = TestFailingEvent.class)
+        SagaState onEvent(FailingTestSaga saga, EventMeta<TestId> meta, TestFailingEvent event) {
+            return WAITING;
+        }
+
+        @SagaEventHandler(state = "WAITING", event = TestFailingEvent.class)
+        SagaState onFailingEvent(FailingTestSaga saga, EventMeta<TestId> meta, TestFailingEvent event) {
+            saga.publishCommand(new ValidateTestObjectCommand(meta.objectId()));
+            throw new IllegalStateException("failing saga");
+        }
+    }
+}
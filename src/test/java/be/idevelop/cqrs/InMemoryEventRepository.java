@@ -0,0 +1,42 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Singleton;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+@Singleton
+@Requires(env = "benchmark")
+public class InMemoryEventRepository implements EventRepository {
+
+    private final ConcurrentMap<Id<?, ?>, List<EventMessage<?, ? extends Record>>> eventMessages = new ConcurrentHashMap<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Flux<EventMessage<I, ? extends Record>> retrieveEventMessages(I objectId, Class<A> clazz) {
+        var events = this.eventMessages.get(objectId);
+        if (events == null) {
+            return Flux.empty();
+        }
+        synchronized (events) {
+            return Flux.fromIterable(new ArrayList<>(events)).map(eventMessage -> (EventMessage<I, ? extends Record>) eventMessage);
+        }
+    }
+
+    @Override
+    public <I extends Id<A, I>, A extends AggregateRoot<A, I>> Mono<Boolean> saveEventMessages(List<EventMessage<I, ? extends Record>> eventMessages, Class<A> clazz) {
+        if (eventMessages.isEmpty()) {
+            return Mono.just(true);
+        }
+        var events = this.eventMessages.computeIfAbsent(eventMessages.get(0).objectId(), id -> new ArrayList<>());
+        synchronized (events) {
+            events.addAll(eventMessages);
+        }
+        return Mono.just(true);
+    }
+}
@@ -4,18 +4,20 @@ import io.micronaut.json.JsonMapper;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.HashSet;
+import java.time.Duration;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Singleton
 public class InMemorySagaStore extends AbstractSagaStore {
-    private final Set<SagaData> sagas = new HashSet<>();
+    private final Set<SagaData> sagas = ConcurrentHashMap.newKeySet();
 
     @Inject
-    public InMemorySagaStore(JsonMapper jsonMapper) {
-        super(jsonMapper);
+    public InMemorySagaStore(JsonMapper jsonMapper, SagaStateCodec stateCodec) {
+        super(jsonMapper, stateCodec, 0, Duration.ZERO);
     }
 
     @Override
@@ -25,6 +27,18 @@ public class InMemorySagaStore extends AbstractSagaStore {
                 .filter(sagaData -> sagaData.associatedEntities().contains(id));
     }
 
+    @Override
+    protected <S extends Saga<S>> Mono<SagaData> doFindSaga(SagaId<S> sagaId) {
+        return Flux.fromIterable(sagas)
+                .filter(sagaData -> sagaId.equals(sagaData.id()))
+                .next();
+    }
+
+    @Override
+    public boolean supportsFindSaga() {
+        return true;
+    }
+
     @Override
     protected void doStore(SagaData sagaData) {
         this.sagas.add(sagaData);
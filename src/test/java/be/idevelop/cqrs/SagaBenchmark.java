@@ -0,0 +1,102 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.json.JsonMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saga handling by the {@link SagaRepository}, creating a saga and advancing it to its end state, and the serialization
+ * and rebuilding of saga state by the {@link AbstractSagaStore}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "--enable-preview")
+public class SagaBenchmark {
+
+    private ApplicationContext applicationContext;
+
+    private SagaRepository sagaRepository;
+
+    private LastSagaStore lastSagaStore;
+
+    private CreateNewTestObjectSaga saga;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.applicationContext = ApplicationContext.run("test", "benchmark");
+        this.sagaRepository = applicationContext.getBean(SagaRepository.class);
+        this.lastSagaStore = new LastSagaStore(applicationContext.getBean(JsonMapper.class));
+        this.saga = new CreateNewTestObjectSaga(SagaId.createNew(CreateNewTestObjectSaga.class), Instant.now());
+        this.saga.linkEntity(new TestId());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.applicationContext.close();
+    }
+
+    @Benchmark
+    public EventMessage<TestId, ? extends Record> createAndAdvanceSaga() {
+        var testId = new TestId();
+        sagaRepository.handleEventOnSagas(new EventMessage<>(new EventMeta<>(testId, 0, Instant.now()), new TestCreatedEvent())).block();
+        return sagaRepository.handleEventOnSagas(new EventMessage<>(new EventMeta<>(testId, 1, Instant.now()), new TestValidatedEvent())).block();
+    }
+
+    @Benchmark
+    public CreateNewTestObjectSaga serializeAndRebuildSaga() {
+        lastSagaStore.storeSaga(saga);
+        return lastSagaStore.rebuildSaga(lastSagaStore.last);
+    }
+
+    /**
+     * Keeps only the last stored saga, so the benchmark measures serializing and rebuilding rather than the storage.
+     */
+    static final class LastSagaStore extends AbstractSagaStore {
+
+        private SagaData last;
+
+        LastSagaStore(JsonMapper jsonMapper) {
+            super(jsonMapper);
+        }
+
+        @Override
+        protected <I extends Id<A, I>, A extends AggregateRoot<A, I>, S extends Saga<S>> Flux<SagaData> doFindAssociatedSagas(I id, Class<S> sagaClass) {
+            return Flux.justOrEmpty(last);
+        }
+
+        @Override
+        protected void doStore(SagaData sagaData) {
+            this.last = sagaData;
+        }
+
+        @Override
+        protected <S extends Saga<S>> void doDeleteSaga(SagaId<S> sagaId) {
+            this.last = null;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SagaBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -1,6 +1,14 @@
 package be.idevelop.cqrs;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class TestAggregateRoot extends AggregateRoot<TestAggregateRoot, TestId> {
+
+    boolean created;
+
+    boolean validated;
+
     protected TestAggregateRoot(TestId id) {
         super(id);
     }
@@ -12,4 +20,18 @@ public class TestAggregateRoot extends AggregateRoot<TestAggregateRoot, TestId>
     public void validate() {
         apply(new TestValidatedEvent());
     }
+
+    @Override
+    protected Map<String, Object> getFieldData() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("created", created);
+        map.put("validated", validated);
+        return map;
+    }
+
+    @Override
+    protected void hydrateFieldData(Map<String, Object> fieldData) {
+        this.created = (boolean) fieldData.get("created");
+        this.validated = (boolean) fieldData.get("validated");
+    }
 }
@@ -22,4 +22,9 @@ public class TestCommandHandler {
         testObject.validate();
         return testObject;
     }
+
+    @CommandHandler
+    TestAggregateRoot onCommand(TestAggregateRoot testObject, FailingTestCommand command) {
+        throw new IllegalStateException("Failing test command " + command + " for " + testObject);
+    }
 }
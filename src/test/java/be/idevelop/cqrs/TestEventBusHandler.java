@@ -0,0 +1,25 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.atomic.LongAdder;
+
+@Singleton
+@Requires(env = "benchmark")
+public class TestEventBusHandler {
+
+    final LongAdder created = new LongAdder();
+
+    final LongAdder validated = new LongAdder();
+
+    @EventBusHandler
+    void onEvent(TestCreatedEvent event, EventMeta<TestId> meta) {
+        created.increment();
+    }
+
+    @EventBusHandler
+    void onValidated(TestValidatedEvent event, EventMeta<TestId> meta) {
+        validated.increment();
+    }
+}
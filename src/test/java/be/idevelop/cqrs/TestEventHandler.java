@@ -0,0 +1,17 @@
+package be.idevelop.cqrs;
+
+import jakarta.inject.Singleton;
+
+@Singleton
+public class TestEventHandler {
+
+    @EventHandler
+    void onEvent(TestAggregateRoot testObject, TestCreatedEvent event) {
+        testObject.created = true;
+    }
+
+    @EventHandler
+    void onEvent(TestAggregateRoot testObject, TestValidatedEvent event) {
+        testObject.validated = true;
+    }
+}
@@ -1,7 +1,25 @@
 package be.idevelop.cqrs;
 
+import io.micronaut.core.annotation.Creator;
+import io.micronaut.core.annotation.Introspected;
+
+import java.util.Objects;
+import java.util.UUID;
+
+@Introspected
 public class TestId implements Id<TestAggregateRoot, TestId> {
 
+    private final UUID value;
+
+    public TestId() {
+        this(UUID.randomUUID());
+    }
+
+    @Creator
+    public TestId(UUID value) {
+        this.value = value;
+    }
+
     @Override
     public Class<TestAggregateRoot> getEntityClass() {
         return TestAggregateRoot.class;
@@ -9,6 +27,18 @@ public class TestId implements Id<TestAggregateRoot, TestId> {
 
     @Override
     public String asString() {
-        return "";
+        return value.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Objects.equals(value, ((TestId) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value);
     }
 }
@@ -0,0 +1,5 @@
+package be.idevelop.cqrs;
+
+@Event(TestId.class)
+public record TestTimeoutStartedEvent() {
+}
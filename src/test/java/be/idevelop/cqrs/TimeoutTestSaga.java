@@ -0,0 +1,49 @@
+package be.idevelop.cqrs;
+
+import jakarta.inject.Singleton;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static be.idevelop.cqrs.SagaState.END_STATE;
+import static be.idevelop.cqrs.TimeoutTestSaga.State.WAITING;
+
+final class TimeoutTestSaga extends Saga<TimeoutTestSaga> {
+
+    static final Queue<SagaId<TimeoutTestSaga>> TIMED_OUT = new ConcurrentLinkedQueue<>();
+
+    @Override
+    protected Map<String, Object> getFieldData() {
+        return Map.of();
+    }
+
+    @Override
+    protected void hydrateFieldData(Map<String, Object> fieldData) {
+    }
+
+    enum State implements SagaState {
+        WAITING
+    }
+
+    public TimeoutTestSaga(SagaId<TimeoutTestSaga> sagaId, Instant created) {
+        super(sagaId, created, new TimeoutStrategy(200, ChronoUnit.MILLIS, TimeoutType.SINCE_START), State.values());
+    }
+
+    @Singleton
+    static class SagaEventHandlers {
+
+        @SagaEventHandler(state = "START_STATE", event = TestTimeoutStartedEvent.class)
+        SagaState onEvent(TimeoutTestSaga saga, EventMeta<TestId> meta, TestTimeoutStartedEvent event) {
+            return WAITING;
+        }
+
+        @SagaEventHandler(state = "WAITING", event = SagaTimedOutEvent.class)
+        SagaState onEvent(TimeoutTestSaga saga, EventMeta<SagaId<TimeoutTestSaga>> meta, SagaTimedOutEvent event) {
+            TIMED_OUT.add(meta.objectId());
+            return END_STATE;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package be.idevelop.cqrs;
+
+import io.micronaut.core.annotation.Introspected;
+import io.micronaut.serde.annotation.Serdeable;
+
+import java.time.Instant;
+
+@Introspected
+final class TypedTestSaga extends TypedSaga<TypedTestSaga, TypedTestSaga.Data> {
+
+    @Serdeable
+    record Data(int attempts, String reference) {
+    }
+
+    enum State implements SagaState {
+        WAITING
+    }
+
+    private Data data = new Data(0, null);
+
+    public TypedTestSaga(SagaId<TypedTestSaga> sagaId, Instant created) {
+        super(sagaId, created, State.values());
+    }
+
+    @Override
+    protected Data getState() {
+        return data;
+    }
+
+    @Override
+    protected void hydrateState(Data data) {
+        this.data = data;
+    }
+
+    void attempt(String reference) {
+        this.data = new Data(data.attempts() + 1, reference);
+    }
+}